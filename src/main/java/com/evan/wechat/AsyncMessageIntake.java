@@ -0,0 +1,377 @@
+package com.evan.wechat;
+
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.utils.BufferPool;
+import com.evan.wechat.utils.RetryCache;
+import com.evan.wechat.utils.Utf8Writer;
+import com.evan.wechat.utils.XmlMessage;
+import com.evan.wechat.utils.XmlSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于Servlet 3.1非阻塞IO的回调接收
+ * <p>
+ * 请求体通过ReadListener在数据到达时读入池化的缓冲区，读取过程中不占用容器线程；
+ * 读完后扫描为XmlMessage交给处理器，并写回被动回复；处理超过timeout时先回复success结束请求，之后的处理结果不再写入。
+ * 配置了 {@link RetryCache} 时，微信的重试请求不再重复处理，而是等待原请求的结果并回复相同的内容；去重只对明文和兼容模式的消息生效，
+ * 安全模式的密文信封没有MsgId、FromUserName，不做去重。调用方的Servlet需开启asyncSupported：
+ * <pre>
+ * &#64;WebServlet(urlPatterns = "/wechat", asyncSupported = true)
+ * public class WechatServlet extends HttpServlet {
+ *     private final AsyncMessageIntake intake = new AsyncMessageIntake(dispatcher::dispatch);
+ *
+ *     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+ *         intake.accept(req, resp);
+ *     }
+ * }
+ * </pre>
+ */
+public class AsyncMessageIntake {
+
+    private static Logger log = LoggerFactory.getLogger(AsyncMessageIntake.class);
+
+    // 微信在5秒内收不到回复即断开并重试，超时回复的success需在此之前到达，因此留出网络传输的余量
+    public static final long DEFAULT_TIMEOUT = 4500;
+    // 请求体上限，超过时返回413
+    public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024;
+
+    // 无需回复时返回的内容
+    private static final byte[] SUCCESS = "success".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int READING = 0;
+    private static final int PROCESSING = 1;
+    private static final int TIMED_OUT = 2;
+    private static final int DONE = 3;
+    // 读取中被超时或出错中止，缓冲区仍由读取线程持有
+    private static final int ABORTED = 4;
+
+    private final MessageHandler handler;
+    private final BufferPool bufferPool;
+    private final Executor executor;
+    private final int maxBodySize;
+    private final long timeout;
+    private final RetryCache retryCache;
+
+    /**
+     * 使用默认缓冲池和默认的重试去重，在读完请求体的容器线程上直接处理
+     *
+     * @param handler 消息处理器
+     */
+    public AsyncMessageIntake(MessageHandler handler) {
+        this(handler, BufferPool.getDefault(), null, DEFAULT_MAX_BODY_SIZE, DEFAULT_TIMEOUT, new RetryCache());
+    }
+
+    /**
+     * @param handler     消息处理器
+     * @param bufferPool  请求体缓冲池
+     * @param executor    执行处理器的线程池，为null时在读完请求体的容器线程上处理
+     * @param maxBodySize 请求体上限
+     * @param timeout     异步请求超时时间，单位：毫秒
+     */
+    public AsyncMessageIntake(MessageHandler handler, BufferPool bufferPool, Executor executor, int maxBodySize, long timeout) {
+        this(handler, bufferPool, executor, maxBodySize, timeout, null);
+    }
+
+    /**
+     * @param handler     消息处理器
+     * @param bufferPool  请求体缓冲池
+     * @param executor    执行处理器的线程池，为null时在读完请求体的容器线程上处理
+     * @param maxBodySize 请求体上限
+     * @param timeout     异步请求超时时间，单位：毫秒
+     * @param retryCache  重试去重缓存，为null时不去重
+     */
+    public AsyncMessageIntake(MessageHandler handler, BufferPool bufferPool, Executor executor, int maxBodySize, long timeout,
+                              RetryCache retryCache) {
+        if (null == handler || null == bufferPool)
+            throw new IllegalArgumentException("handler and bufferPool must not be null");
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+        this.maxBodySize = maxBodySize;
+        this.timeout = timeout;
+        this.retryCache = retryCache;
+    }
+
+    /**
+     * 开始异步接收一个回调请求，本方法立即返回
+     *
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    public void accept(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int contentLength = request.getContentLength();
+        if (contentLength > maxBodySize) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(timeout);
+        ServletInputStream inputStream = request.getInputStream();
+        BodyReader reader = new BodyReader(context, inputStream, response);
+        context.addListener(reader);
+        inputStream.setReadListener(reader);
+    }
+
+    /**
+     * 读取一个请求体并在读完后处理
+     */
+    private final class BodyReader implements ReadListener, AsyncListener {
+        private final AsyncContext context;
+        private final ServletInputStream inputStream;
+        private final HttpServletResponse response;
+        private final AtomicInteger state = new AtomicInteger(READING);
+        private byte[] buffer;
+        private int length;
+
+        BodyReader(AsyncContext context, ServletInputStream inputStream, HttpServletResponse response) {
+            this.context = context;
+            this.inputStream = inputStream;
+            this.response = response;
+            this.buffer = bufferPool.acquire();
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            if (stopReading())
+                return;
+            while (inputStream.isReady() && !inputStream.isFinished()) {
+                if (length == buffer.length) {
+                    if (buffer.length >= maxBodySize) {
+                        fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                        return;
+                    }
+                    // 超出池化缓冲区的请求体扩容，扩容后的数组不再归还缓冲池
+                    byte[] larger = Arrays.copyOf(buffer, Math.min(buffer.length << 1, maxBodySize));
+                    bufferPool.release(buffer);
+                    buffer = larger;
+                }
+                int n = inputStream.read(buffer, length, buffer.length - length);
+                if (n < 0)
+                    return;
+                length += n;
+                // 读取期间可能已超时，每次读取后重新检查
+                if (stopReading())
+                    return;
+            }
+        }
+
+        // 读取已被中止时由读取线程归还缓冲区，onTimeout等回调不能归还，否则缓冲区可能在读取中被其他请求取走
+        private boolean stopReading() {
+            int current = state.get();
+            if (ABORTED == current)
+                releaseBuffer();
+            return READING != current;
+        }
+
+        @Override
+        public void onAllDataRead() {
+            if (!state.compareAndSet(READING, PROCESSING)) {
+                stopReading();
+                return;
+            }
+            if (null == executor) {
+                process();
+                return;
+            }
+            try {
+                executor.execute(this::process);
+            } catch (RejectedExecutionException e) {
+                log.warn("处理线程池已满，拒绝微信消息");
+                releaseBuffer();
+                fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+        }
+
+        private void process() {
+            XmlMessage message = null;
+            String key = null;
+            try {
+                // 复制出请求体后即归还缓冲区，处理器返回后仍可持有消息，超时结束请求也不必等缓冲区
+                message = XmlMessage.scan(buffer, 0, length).detach();
+                if (null != retryCache)
+                    key = RetryCache.keyOf(message);
+            } catch (IllegalArgumentException e) {
+                log.error("解析微信消息失败", e);
+            } finally {
+                releaseBuffer();
+            }
+            if (null == key) {
+                writeReply(handle(message));
+                return;
+            }
+
+            CompletableFuture<byte[]> reply = new CompletableFuture<byte[]>();
+            CompletableFuture<byte[]> original = retryCache.putIfAbsent(key, reply);
+            if (null != original) {
+                // 重试请求：等原请求处理完后回复相同的内容，等待期间不占用线程；本请求已超时的由reply跳过
+                original.whenComplete((bytes, error) -> reply(null == bytes ? SUCCESS : bytes));
+                return;
+            }
+            byte[] bytes = SUCCESS;
+            try {
+                BaseMessage result = handler.handle(message);
+                if (null != result) {
+                    Utf8Writer writer = Utf8Writer.local();
+                    XmlSerializer.of(result.getClass()).write(result, writer);
+                    bytes = writer.toByteArray();
+                }
+                reply.complete(bytes);
+            } catch (Throwable e) {
+                // 处理失败不缓存，下一次重试重新处理；正在等待的重试回复success
+                log.error("处理微信消息失败", e);
+                retryCache.remove(key, reply);
+                reply.completeExceptionally(e);
+            }
+            reply(bytes);
+        }
+
+        private BaseMessage handle(XmlMessage message) {
+            if (null == message)
+                return null;
+            try {
+                return handler.handle(message);
+            } catch (Exception e) {
+                log.error("处理微信消息失败", e);
+                return null;
+            }
+        }
+
+        // 被动回复很小，可以直接写入容器的响应缓冲区
+        private void writeReply(BaseMessage message) {
+            if (null == message) {
+                reply(SUCCESS);
+                return;
+            }
+            Utf8Writer writer = Utf8Writer.local();
+            try {
+                XmlSerializer.of(message.getClass()).write(message, writer);
+            } catch (RuntimeException e) {
+                log.error("生成被动回复失败", e);
+                reply(SUCCESS);
+                return;
+            }
+            // 已超时的请求由onTimeout回复，容器可能已回收响应对象
+            if (!state.compareAndSet(PROCESSING, DONE))
+                return;
+            try {
+                response.setContentType("text/xml;charset=UTF-8");
+                response.setContentLength(writer.size());
+                writer.writeTo(response.getOutputStream());
+            } catch (IOException e) {
+                log.error("写入被动回复失败", e);
+            } finally {
+                complete();
+            }
+        }
+
+        // 写入回复并结束请求，已超时的请求不再写入
+        private void reply(byte[] bytes) {
+            if (!state.compareAndSet(PROCESSING, DONE))
+                return;
+            try {
+                write(bytes);
+            } finally {
+                complete();
+            }
+        }
+
+        private void write(byte[] bytes) {
+            try {
+                response.setContentType("text/xml;charset=UTF-8");
+                response.setContentLength(bytes.length);
+                response.getOutputStream().write(bytes);
+            } catch (IOException e) {
+                log.error("写入被动回复失败", e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.error("读取微信消息失败", t);
+            abort();
+            // ReadListener的回调在读取线程上，可以直接归还缓冲区
+            stopReading();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (state.compareAndSet(READING, ABORTED)) {
+                complete();
+            } else if (state.compareAndSet(PROCESSING, TIMED_OUT)) {
+                // 处理仍在进行：先回复success，处理线程之后不再写入响应
+                log.warn("处理微信消息超过{}毫秒，已回复success", timeout);
+                try {
+                    write(SUCCESS);
+                } finally {
+                    complete();
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            log.error("微信回调请求出错", event.getThrowable());
+            abort();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        // 出错时结束请求，读取中的缓冲区留给读取线程在下一次回调时归还；之后没有回调时不再归还，由GC回收
+        private void abort() {
+            if (state.compareAndSet(READING, ABORTED)) {
+                complete();
+            } else if (state.compareAndSet(PROCESSING, DONE)) {
+                // 请求已出错，处理线程之后不再写入响应
+                complete();
+            }
+        }
+
+        // 读取中或尚未开始处理时结束请求
+        private void fail(int status) {
+            if (state.compareAndSet(READING, DONE) || state.compareAndSet(PROCESSING, DONE)) {
+                releaseBuffer();
+                response.setStatus(status);
+                complete();
+            }
+        }
+
+        // 只由当前持有缓冲区的线程调用：读取阶段及被中止后为执行ReadListener回调的容器线程，处理阶段为处理线程
+        private void releaseBuffer() {
+            if (null != buffer) {
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+
+        private void complete() {
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // 请求已超时或已结束
+            }
+        }
+    }
+}
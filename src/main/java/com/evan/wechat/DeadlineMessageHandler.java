@@ -0,0 +1,140 @@
+package com.evan.wechat;
+
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.token.AccessTokenManager;
+import com.evan.wechat.utils.WeixinUtil;
+import com.evan.wechat.utils.XmlMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 限时处理：被动回复超时后改用客服消息补发
+ * <p>
+ * 微信5秒内收不到被动回复就会断开并重试。处理器放到独立的有界线程池中执行，回调线程最多等待deadline：
+ * 按时完成的结果作为被动回复；超时则立即返回null（即回复success），处理器继续执行，
+ * 完成后通过客服消息接口把结果推送给用户。线程池已满时同样直接返回success，不占用回调线程。
+ * <pre>
+ * MessageHandler handler = new DeadlineMessageHandler(api, tokenSupplier);
+ * AsyncMessageIntake intake = new AsyncMessageIntake(handler);
+ * </pre>
+ */
+public class DeadlineMessageHandler implements MessageHandler {
+
+    private static Logger log = LoggerFactory.getLogger(DeadlineMessageHandler.class);
+
+    // 默认期限，为网络传输和序列化留出余量
+    public static final long DEFAULT_DEADLINE = 4500;
+
+    private final MessageHandler delegate;
+    private final ExecutorService executor;
+    private final Supplier<String> accessToken;
+    private final long deadline;
+
+    /**
+     * 使用默认期限和默认线程池（处理器数量的4倍线程、队列1024）
+     *
+     * @param delegate    实际的处理器
+     * @param accessToken 补发客服消息时使用的access_token，为AccessTokenManager时凭证失效会刷新后重试
+     */
+    public DeadlineMessageHandler(MessageHandler delegate, Supplier<String> accessToken) {
+        this(delegate, newExecutor(Runtime.getRuntime().availableProcessors() * 4, 1024), accessToken, DEFAULT_DEADLINE);
+    }
+
+    /**
+     * @param delegate    实际的处理器
+     * @param executor    执行处理器的线程池，应当有界
+     * @param accessToken 补发客服消息时使用的access_token
+     * @param deadline    等待处理结果的期限，单位：毫秒
+     */
+    public DeadlineMessageHandler(MessageHandler delegate, ExecutorService executor, Supplier<String> accessToken, long deadline) {
+        if (null == delegate || null == executor || null == accessToken)
+            throw new IllegalArgumentException("delegate, executor and accessToken must not be null");
+        this.delegate = delegate;
+        this.executor = executor;
+        this.accessToken = accessToken;
+        this.deadline = deadline;
+    }
+
+    /**
+     * 创建有界线程池，队列满时拒绝新任务
+     *
+     * @param threads   线程数
+     * @param queueSize 等待队列长度
+     * @return 线程池
+     */
+    public static ExecutorService newExecutor(int threads, int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "wechat-handler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public BaseMessage handle(XmlMessage message) throws Exception {
+        // 超时后处理器仍在读取消息，而回调返回后请求体缓冲区会归还缓冲池
+        message.detach();
+        CompletableFuture<BaseMessage> future = new CompletableFuture<BaseMessage>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(delegate.handle(message));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("消息处理线程池已满，放弃处理 {}", message.get("FromUserName"));
+            return null;
+        }
+        try {
+            return future.get(deadline, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.whenComplete((reply, error) -> sendLater(reply, error));
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    // 超时的处理结果改用客服消息发送
+    private void sendLater(BaseMessage reply, Throwable error) {
+        if (null != error) {
+            log.error("处理微信消息失败", error);
+            return;
+        }
+        if (null == reply)
+            return;
+        try {
+            if (accessToken instanceof AccessTokenManager)
+                WeixinUtil.sendCustomMessage(reply, (AccessTokenManager) accessToken);
+            else
+                WeixinUtil.sendCustomMessage(reply, accessToken.get());
+        } catch (Exception e) {
+            log.error("补发客服消息失败", e);
+        }
+    }
+
+    /**
+     * 关闭线程池，已提交的处理继续执行
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
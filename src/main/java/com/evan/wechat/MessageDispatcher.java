@@ -0,0 +1,88 @@
+package com.evan.wechat;
+
+import com.evan.wechat.event.EventType;
+import com.evan.wechat.message.MsgType;
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.utils.XmlMessage;
+
+/**
+ * 按MsgType、Event分发消息
+ * <p>
+ * 处理器按枚举序号存放在数组中，分发时只需在字节上识别一次类型再按下标取处理器，
+ * 耗时与注册的类型数量无关，也不产生临时对象。应在开始分发前完成注册。
+ */
+public class MessageDispatcher {
+
+    private static final int MSG_TYPE_COUNT = MsgType.values().length;
+    private static final int EVENT_TYPE_COUNT = EventType.values().length;
+
+    // 按MsgType序号存放的处理器
+    private final MessageHandler[] messageHandlers = new MessageHandler[MSG_TYPE_COUNT];
+    // 按EventType序号存放的处理器
+    private final MessageHandler[] eventHandlers = new MessageHandler[EVENT_TYPE_COUNT];
+    // 没有匹配的处理器时使用
+    private MessageHandler defaultHandler;
+
+    /**
+     * 注册普通消息的处理器，注册到EVENT的处理器在没有对应事件处理器时使用
+     *
+     * @param msgType 消息类型
+     * @param handler 处理器
+     * @return this
+     */
+    public MessageDispatcher on(MsgType msgType, MessageHandler handler) {
+        messageHandlers[msgType.ordinal()] = handler;
+        return this;
+    }
+
+    /**
+     * 注册事件推送的处理器
+     *
+     * @param eventType 事件类型
+     * @param handler   处理器
+     * @return this
+     */
+    public MessageDispatcher on(EventType eventType, MessageHandler handler) {
+        eventHandlers[eventType.ordinal()] = handler;
+        return this;
+    }
+
+    /**
+     * 注册默认处理器
+     *
+     * @param handler 处理器
+     * @return this
+     */
+    public MessageDispatcher otherwise(MessageHandler handler) {
+        this.defaultHandler = handler;
+        return this;
+    }
+
+    /**
+     * 选择处理器
+     *
+     * @param message 扫描结果
+     * @return 处理器，没有匹配时返回null
+     */
+    public MessageHandler select(XmlMessage message) {
+        MsgType msgType = message.getMsgType();
+        MessageHandler handler = null;
+        if (MsgType.EVENT == msgType)
+            handler = eventHandlers[message.getEventType().ordinal()];
+        if (null == handler)
+            handler = messageHandlers[msgType.ordinal()];
+        return null == handler ? defaultHandler : handler;
+    }
+
+    /**
+     * 分发消息
+     *
+     * @param message 扫描结果
+     * @return 被动回复的消息，没有处理器或无需回复时返回null
+     * @throws Exception
+     */
+    public BaseMessage dispatch(XmlMessage message) throws Exception {
+        MessageHandler handler = select(message);
+        return null == handler ? null : handler.handle(message);
+    }
+}
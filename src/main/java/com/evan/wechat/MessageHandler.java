@@ -0,0 +1,21 @@
+package com.evan.wechat;
+
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.utils.XmlMessage;
+
+/**
+ * 消息处理器
+ */
+public interface MessageHandler {
+
+    /**
+     * 处理一条微信推送
+     *
+     * @param message 字节扫描结果，可通过MessageUtil.parseMessage绑定为具体的消息对象。
+     *                AsyncMessageIntake传入的消息已脱离池化的请求体缓冲区，返回后仍可继续使用；
+     *                其他调用方传入的消息可能引用调用方复用的数组，需要在返回后继续使用时先调用detach()
+     * @return 被动回复的消息，无需回复时返回null
+     * @throws Exception
+     */
+    BaseMessage handle(XmlMessage message) throws Exception;
+}
@@ -0,0 +1,269 @@
+package com.evan.wechat;
+
+import com.evan.wechat.event.EventType;
+import com.evan.wechat.message.MsgType;
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.session.SessionStore;
+import com.evan.wechat.utils.KeywordIndex;
+import com.evan.wechat.utils.XmlMessage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 把路由规则编译成分发表
+ * <p>
+ * 第一级按MsgType/Event的序号直接定位到分桶（复用MessageDispatcher）；桶内再按EventKey、FromUserName
+ * 建哈希索引，关键词规则编译为一个Aho-Corasick自动机，只有正则内容规则需要逐条尝试。
+ * 编译结果不可变，可被多个线程同时读取。
+ */
+final class RuleTable {
+
+    private static final MsgType[] MSG_TYPES = MsgType.values();
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private RuleTable() {
+    }
+
+    /**
+     * 编译规则
+     *
+     * @param rules        规则，按加入顺序
+     * @param sessionStore 需要会话的处理器使用的会话存储，可为null
+     * @return 分发表
+     */
+    static MessageDispatcher compile(List<WechatRule> rules, SessionStore sessionStore) {
+        List<Rule> compiled = new ArrayList<Rule>(rules.size());
+        for (int i = 0; i < rules.size(); i++)
+            compiled.add(new Rule(rules.get(i), i, sessionStore));
+        // 按优先级从高到低，同优先级按加入顺序
+        compiled.sort(Rule.RANK);
+
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        for (MsgType msgType : MSG_TYPES) {
+            if (MsgType.EVENT == msgType)
+                continue;
+            Bucket bucket = Bucket.of(compiled, msgType, null);
+            if (null != bucket)
+                dispatcher.on(msgType, bucket);
+        }
+        for (EventType eventType : EVENT_TYPES) {
+            Bucket bucket = Bucket.of(compiled, MsgType.EVENT, eventType);
+            if (null != bucket)
+                dispatcher.on(eventType, bucket);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * 编译后的规则
+     */
+    static final class Rule {
+        static final Comparator<Rule> RANK = new Comparator<Rule>() {
+            @Override
+            public int compare(Rule a, Rule b) {
+                if (a.priority != b.priority)
+                    return a.priority > b.priority ? -1 : 1;
+                return Integer.compare(a.order, b.order);
+            }
+        };
+
+        final MsgType msgType;
+        final EventType eventType;
+        final String eventKey;
+        final String fromUser;
+        final Pattern content;
+        final KeywordIndex.Keyword<Rule> keyword;
+        final int priority;
+        final int order;
+        final MessageHandler handler;
+
+        Rule(WechatRule rule, int order, SessionStore sessionStore) {
+            if (null != rule.getSessionHandler()) {
+                if (null == sessionStore)
+                    throw new IllegalStateException("session store is required by rule session handler");
+                this.handler = SessionMessageHandler.bind(sessionStore, rule.getSessionHandler());
+            } else if (null != rule.getHandler()) {
+                this.handler = rule.getHandler();
+            } else {
+                throw new IllegalArgumentException("rule handler must not be null");
+            }
+            this.msgType = rule.getMsgType();
+            this.eventType = rule.getEventType();
+            this.eventKey = rule.getEventKey();
+            this.fromUser = rule.getFromUser();
+            this.content = rule.getContent();
+            this.keyword = null == rule.getKeyword() ? null
+                    : new KeywordIndex.Keyword<Rule>(rule.getKeyword(), rule.getKeywordMode(), rule.getPriority(), this);
+            this.priority = rule.getPriority();
+            this.order = order;
+        }
+
+        // 规则是否适用于该分桶
+        boolean appliesTo(MsgType type, EventType event) {
+            if (null != msgType && msgType != type)
+                return false;
+            return null == eventType || eventType == event;
+        }
+
+        // 核对索引之外的条件
+        boolean matches(XmlMessage message) {
+            return matches(message, true);
+        }
+
+        // 核对索引之外的条件，由关键词自动机命中时无需再核对关键词
+        boolean matches(XmlMessage message, boolean checkKeyword) {
+            if (null != fromUser && !message.valueEquals("FromUserName", fromUser))
+                return false;
+            if (null != eventKey && !message.valueEquals("EventKey", eventKey))
+                return false;
+            if (null != content || null != keyword && checkKeyword) {
+                String text = message.get("Content");
+                if (null == text)
+                    return false;
+                if (null != content && !content.matcher(text).matches())
+                    return false;
+                return null == keyword || !checkKeyword || keyword.matches(text, false);
+            }
+            return true;
+        }
+
+        boolean isBetterThan(Rule other) {
+            return null == other || RANK.compare(this, other) < 0;
+        }
+    }
+
+    /**
+     * 一种MsgType/Event对应的规则分桶
+     */
+    static final class Bucket implements MessageHandler {
+        private static final Rule[] EMPTY = new Rule[0];
+
+        // 按EventKey索引
+        private final Map<String, Rule[]> byEventKey;
+        // 按FromUserName索引（未设置EventKey的规则）
+        private final Map<String, Rule[]> byFromUser;
+        // 关键词规则（未设置EventKey、FromUserName）
+        private final KeywordIndex<Rule> keywords;
+        // 只有内容条件的规则，按优先级排序
+        private final Rule[] patterns;
+        // 没有其他条件的规则中优先级最高的一条
+        private final Rule generic;
+
+        private Bucket(Map<String, Rule[]> byEventKey, Map<String, Rule[]> byFromUser, KeywordIndex<Rule> keywords,
+                       Rule[] patterns, Rule generic) {
+            this.byEventKey = byEventKey;
+            this.byFromUser = byFromUser;
+            this.keywords = keywords;
+            this.patterns = patterns;
+            this.generic = generic;
+        }
+
+        static Bucket of(List<Rule> rules, MsgType msgType, EventType eventType) {
+            Map<String, List<Rule>> byEventKey = new HashMap<String, List<Rule>>();
+            Map<String, List<Rule>> byFromUser = new HashMap<String, List<Rule>>();
+            List<KeywordIndex.Keyword<Rule>> keywords = new ArrayList<KeywordIndex.Keyword<Rule>>();
+            List<Rule> patterns = new ArrayList<Rule>();
+            Rule generic = null;
+            boolean empty = true;
+            for (Rule rule : rules) {
+                if (!rule.appliesTo(msgType, eventType))
+                    continue;
+                empty = false;
+                if (null != rule.eventKey)
+                    add(byEventKey, rule.eventKey, rule);
+                else if (null != rule.fromUser)
+                    add(byFromUser, rule.fromUser, rule);
+                else if (null != rule.keyword)
+                    keywords.add(rule.keyword);
+                else if (null != rule.content)
+                    patterns.add(rule);
+                else if (null == generic)
+                    generic = rule;
+            }
+            if (empty)
+                return null;
+            // rules已按优先级排序，自动机中同优先级的关键词按加入顺序取先加入的，与规则的先后一致
+            KeywordIndex<Rule> index = keywords.isEmpty() ? null : KeywordIndex.build(keywords);
+            return new Bucket(freeze(byEventKey), freeze(byFromUser), index, patterns.toArray(EMPTY), generic);
+        }
+
+        private static void add(Map<String, List<Rule>> index, String key, Rule rule) {
+            List<Rule> list = index.get(key);
+            if (null == list) {
+                list = new ArrayList<Rule>(1);
+                index.put(key, list);
+            }
+            list.add(rule);
+        }
+
+        private static Map<String, Rule[]> freeze(Map<String, List<Rule>> index) {
+            if (index.isEmpty())
+                return null;
+            Map<String, Rule[]> frozen = new HashMap<String, Rule[]>(index.size() * 2);
+            for (Map.Entry<String, List<Rule>> entry : index.entrySet())
+                frozen.put(entry.getKey(), entry.getValue().toArray(EMPTY));
+            return frozen;
+        }
+
+        /**
+         * 选出命中的最优规则
+         *
+         * @param message 消息
+         * @return 规则，没有命中时返回null
+         */
+        Rule select(XmlMessage message) {
+            Rule best = generic;
+            if (null != byEventKey) {
+                String key = message.get("EventKey");
+                if (null != key)
+                    best = better(best, first(byEventKey.get(key), message, best));
+            }
+            if (null != byFromUser) {
+                String user = message.get("FromUserName");
+                if (null != user)
+                    best = better(best, first(byFromUser.get(user), message, best));
+            }
+            if (null != keywords) {
+                String text = message.get("Content");
+                if (null != text) {
+                    final Rule current = best;
+                    KeywordIndex.Keyword<Rule> hit = keywords.match(text,
+                            rule -> rule.isBetterThan(current) && rule.matches(message, false));
+                    if (null != hit)
+                        best = hit.getValue();
+                }
+            }
+            if (patterns.length > 0)
+                best = better(best, first(patterns, message, best));
+            return best;
+        }
+
+        // 按优先级顺序返回第一条满足全部条件且优于当前结果的规则
+        private static Rule first(Rule[] rules, XmlMessage message, Rule best) {
+            if (null == rules)
+                return null;
+            for (Rule rule : rules) {
+                if (!rule.isBetterThan(best))
+                    return null;
+                if (rule.matches(message))
+                    return rule;
+            }
+            return null;
+        }
+
+        private static Rule better(Rule current, Rule candidate) {
+            return null != candidate && candidate.isBetterThan(current) ? candidate : current;
+        }
+
+        @Override
+        public BaseMessage handle(XmlMessage message) throws Exception {
+            Rule rule = select(message);
+            return null == rule ? null : rule.handler.handle(message);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.evan.wechat;
+
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.session.SessionStore;
+import com.evan.wechat.session.WechatSession;
+import com.evan.wechat.utils.XmlMessage;
+
+/**
+ * 需要会话的消息处理器
+ * <p>
+ * 由路由按FromUserName取出（或创建）会话后调用，处理器返回后会话自动写回存储；调用了
+ * {@link WechatSession#invalidate()} 的会话则从存储中移除。
+ */
+public interface SessionMessageHandler {
+
+    /**
+     * 处理一条微信推送
+     *
+     * @param message 字节扫描结果
+     * @param session 发送方的会话
+     * @return 被动回复的消息，无需回复时返回null
+     * @throws Exception
+     */
+    BaseMessage handle(XmlMessage message, WechatSession session) throws Exception;
+
+    /**
+     * 转换为普通处理器，调用前从store取出会话，调用后写回或移除
+     *
+     * @param store   会话存储
+     * @param handler 需要会话的处理器
+     * @return 处理器
+     */
+    static MessageHandler bind(SessionStore store, SessionMessageHandler handler) {
+        return message -> {
+            String openId = message.get("FromUserName");
+            if (null == openId)
+                return handler.handle(message, null);
+            WechatSession session = store.getOrCreate(openId);
+            try {
+                return handler.handle(message, session);
+            } finally {
+                store.save(session);
+            }
+        };
+    }
+}
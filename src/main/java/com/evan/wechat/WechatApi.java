@@ -1,8 +1,153 @@
 package com.evan.wechat;
 
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.session.SessionStore;
+import com.evan.wechat.utils.XmlMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * Created by Evan on 2017-06-08.
+ * <p>
+ * 消息路由：按规则把微信推送分发给对应的处理器。
+ * <p>
+ * 规则按MsgType、Event、EventKey、FromUserName、关键词、内容正则匹配，加入后编译为按序号、哈希索引的分发表，
+ * 匹配时不逐条扫描规则。修改规则时重新编译出一份新的分发表并整体替换（写时复制），
+ * 路由线程只读取volatile引用，热更新期间无需加锁。
+ * <pre>
+ * WechatApi api = new WechatApi();
+ * api.addRule(new WechatRule().event(EventType.SUBSCRIBE).handler(welcome));
+ * api.addRule(new WechatRule().event(EventType.CLICK).eventKey("V1001_TODAY_MUSIC").handler(music));
+ * api.addRule(new WechatRule().keyword("天气", KeywordIndex.MatchMode.CONTAINS).handler(weather));
+ * api.addRule(new WechatRule().msgType(MsgType.TEXT).content("^查询.*").priority(10).handler(query));
+ * </pre>
  */
-public class WechatApi {
-    
+public class WechatApi implements MessageHandler {
+
+    // 当前生效的规则，只在持有this锁时修改
+    private List<WechatRule> rules = Collections.emptyList();
+    // 由rules编译出的分发表
+    private volatile MessageDispatcher dispatcher = new MessageDispatcher();
+    // 需要会话的处理器使用的会话存储，只在持有this锁时修改
+    private SessionStore sessionStore;
+    // 规则版本，每次修改加一，用于丢弃过期的后台编译结果
+    private long version;
+
+    /**
+     * 追加一条规则
+     *
+     * @param rule 规则
+     * @return this
+     */
+    public synchronized WechatApi addRule(WechatRule rule) {
+        List<WechatRule> copy = new ArrayList<WechatRule>(rules);
+        copy.add(rule);
+        apply(copy);
+        return this;
+    }
+
+    /**
+     * 移除一条规则
+     *
+     * @param rule 规则
+     * @return 是否存在该规则
+     */
+    public synchronized boolean removeRule(WechatRule rule) {
+        List<WechatRule> copy = new ArrayList<WechatRule>(rules);
+        if (!copy.remove(rule))
+            return false;
+        apply(copy);
+        return true;
+    }
+
+    /**
+     * 整体替换规则，用于热更新
+     *
+     * @param rules 规则
+     */
+    public synchronized void setRules(Collection<WechatRule> rules) {
+        apply(new ArrayList<WechatRule>(rules));
+    }
+
+    /**
+     * 在后台线程编译规则，编译完成后整体替换。关键词较多时编译耗时较长，可避免阻塞运营后台的保存操作；
+     * 编译期间仍按原有规则路由。编译完成前规则又被修改时，以后一次修改为准，本次结果丢弃
+     *
+     * @param rules    规则
+     * @param executor 执行编译的线程池
+     * @return 替换完成（或被丢弃）时结束；编译出错时异常结束，原有规则不变
+     */
+    public CompletableFuture<Void> setRulesAsync(Collection<WechatRule> rules, Executor executor) {
+        final List<WechatRule> copy = new ArrayList<WechatRule>(rules);
+        final long expected;
+        final SessionStore store;
+        synchronized (this) {
+            expected = ++version;
+            store = sessionStore;
+        }
+        return CompletableFuture.supplyAsync(() -> RuleTable.compile(copy, store), executor).thenAccept(compiled -> {
+            synchronized (WechatApi.this) {
+                if (version == expected) {
+                    this.rules = Collections.unmodifiableList(copy);
+                    this.dispatcher = compiled;
+                }
+            }
+        });
+    }
+
+    /**
+     * 设置会话存储，使用sessionHandler的规则按FromUserName注入会话
+     *
+     * @param sessionStore 会话存储
+     */
+    public synchronized void setSessionStore(SessionStore sessionStore) {
+        SessionStore previous = this.sessionStore;
+        this.sessionStore = sessionStore;
+        try {
+            apply(new ArrayList<WechatRule>(rules));
+        } catch (RuntimeException e) {
+            this.sessionStore = previous;
+            throw e;
+        }
+    }
+
+    public synchronized SessionStore getSessionStore() {
+        return sessionStore;
+    }
+
+    /**
+     * @return 当前生效的规则
+     */
+    public synchronized List<WechatRule> getRules() {
+        return rules;
+    }
+
+    // 先编译，编译成功后再替换，编译出错时保持原有规则
+    private void apply(List<WechatRule> newRules) {
+        MessageDispatcher compiled = RuleTable.compile(newRules, sessionStore);
+        version++;
+        this.rules = Collections.unmodifiableList(newRules);
+        this.dispatcher = compiled;
+    }
+
+    /**
+     * 路由一条消息
+     *
+     * @param message 扫描结果
+     * @return 命中规则的处理结果，没有命中或无需回复时返回null
+     * @throws Exception
+     */
+    public BaseMessage route(XmlMessage message) throws Exception {
+        return dispatcher.dispatch(message);
+    }
+
+    @Override
+    public BaseMessage handle(XmlMessage message) throws Exception {
+        return route(message);
+    }
 }
@@ -0,0 +1,145 @@
+package com.evan.wechat;
+
+import com.evan.wechat.event.EventType;
+import com.evan.wechat.message.MsgType;
+import com.evan.wechat.utils.KeywordIndex;
+
+import java.util.regex.Pattern;
+
+/**
+ * 消息路由规则
+ * <p>
+ * 未设置的条件表示不限；同一条消息命中多条规则时取priority最大的一条，priority相同时取先加入的一条。
+ * 规则加入WechatApi时会被编译进分发表，之后再修改规则对象不会影响已生效的分发表，需重新调用setRules。
+ */
+public class WechatRule {
+    // 消息类型
+    private MsgType msgType;
+    // 事件类型，设置后消息类型固定为EVENT
+    private EventType eventType;
+    // 事件KEY值，精确匹配
+    private String eventKey;
+    // 发送方帐号（一个OpenID），精确匹配
+    private String fromUser;
+    // 文本消息内容，正则表达式完整匹配
+    private Pattern content;
+    // 文本消息关键词
+    private String keyword;
+    // 关键词匹配方式
+    private KeywordIndex.MatchMode keywordMode;
+    // 优先级，越大越优先
+    private int priority;
+    // 命中后的处理器
+    private MessageHandler handler;
+    // 命中后的处理器，需要会话
+    private SessionMessageHandler sessionHandler;
+
+    public MsgType getMsgType() {
+        if (null != eventType)
+            return MsgType.EVENT;
+        return null != keyword ? MsgType.TEXT : msgType;
+    }
+
+    public WechatRule msgType(MsgType msgType) {
+        this.msgType = msgType;
+        return this;
+    }
+
+    public EventType getEventType() {
+        return eventType;
+    }
+
+    public WechatRule event(EventType eventType) {
+        this.eventType = eventType;
+        return this;
+    }
+
+    public String getEventKey() {
+        return eventKey;
+    }
+
+    public WechatRule eventKey(String eventKey) {
+        this.eventKey = eventKey;
+        return this;
+    }
+
+    public String getFromUser() {
+        return fromUser;
+    }
+
+    public WechatRule fromUser(String fromUser) {
+        this.fromUser = fromUser;
+        return this;
+    }
+
+    public Pattern getContent() {
+        return content;
+    }
+
+    public WechatRule content(String regex) {
+        this.content = Pattern.compile(regex);
+        return this;
+    }
+
+    public WechatRule content(Pattern pattern) {
+        this.content = pattern;
+        return this;
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+
+    public KeywordIndex.MatchMode getKeywordMode() {
+        return keywordMode;
+    }
+
+    /**
+     * 文本消息关键词，设置后消息类型固定为TEXT。所有关键词规则编译进同一个自动机，
+     * 规则数量增加不影响匹配耗时
+     *
+     * @param keyword 关键词
+     * @param mode    匹配方式
+     * @return this
+     */
+    public WechatRule keyword(String keyword, KeywordIndex.MatchMode mode) {
+        this.keyword = keyword;
+        this.keywordMode = mode;
+        return this;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public WechatRule priority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public MessageHandler getHandler() {
+        return handler;
+    }
+
+    public WechatRule handler(MessageHandler handler) {
+        this.handler = handler;
+        this.sessionHandler = null;
+        return this;
+    }
+
+    public SessionMessageHandler getSessionHandler() {
+        return sessionHandler;
+    }
+
+    /**
+     * 需要会话的处理器，WechatApi需先设置SessionStore
+     *
+     * @param sessionHandler 处理器
+     * @return this
+     */
+    public WechatRule sessionHandler(SessionMessageHandler sessionHandler) {
+        this.sessionHandler = sessionHandler;
+        this.handler = null;
+        return this;
+    }
+}
@@ -0,0 +1,85 @@
+package com.evan.wechat.event;
+
+import com.evan.wechat.utils.EnumLookup;
+
+/**
+ * 事件类型（Event），查找时忽略大小写
+ */
+public enum EventType {
+    // 订阅
+    SUBSCRIBE("subscribe"),
+    // 取消订阅
+    UNSUBSCRIBE("unsubscribe"),
+    // 用户已关注时的扫描带参数二维码
+    SCAN("SCAN"),
+    // 上报地理位置
+    LOCATION("LOCATION"),
+    // 点击菜单拉取消息
+    CLICK("CLICK"),
+    // 点击菜单跳转链接
+    VIEW("VIEW"),
+    // 扫码推事件
+    SCANCODE_PUSH("scancode_push"),
+    // 扫码推事件且弹出“消息接收中”提示框
+    SCANCODE_WAITMSG("scancode_waitmsg"),
+    // 弹出系统拍照发图
+    PIC_SYSPHOTO("pic_sysphoto"),
+    // 弹出拍照或者相册发图
+    PIC_PHOTO_OR_ALBUM("pic_photo_or_album"),
+    // 弹出微信相册发图器
+    PIC_WEIXIN("pic_weixin"),
+    // 弹出地理位置选择器
+    LOCATION_SELECT("location_select"),
+    // 点击菜单跳转小程序
+    VIEW_MINIPROGRAM("view_miniprogram"),
+    // 模板消息发送完成
+    TEMPLATE_SEND_JOB_FINISH("TEMPLATESENDJOBFINISH"),
+    // 群发消息发送完成
+    MASS_SEND_JOB_FINISH("MASSSENDJOBFINISH"),
+    // 未识别的事件
+    UNKNOWN(null);
+
+    private static final EnumLookup<EventType> lookup = new EnumLookup<EventType>(values(), EventType::getValue, true);
+
+    private final String value;
+
+    EventType(String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return XML中的取值，UNKNOWN为null
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return 是否为自定义菜单产生的事件
+     */
+    public boolean isMenuEvent() {
+        return ordinal() >= CLICK.ordinal() && ordinal() <= VIEW_MINIPROGRAM.ordinal();
+    }
+
+    /**
+     * 按取值查找
+     *
+     * @param value 取值
+     * @return 事件类型，未识别时返回UNKNOWN
+     */
+    public static EventType of(String value) {
+        return lookup.find(value, UNKNOWN);
+    }
+
+    /**
+     * 直接在原始字节上查找，不创建字符串
+     *
+     * @param data  字节
+     * @param start 起始位置
+     * @param end   结束位置（不含）
+     * @return 事件类型，未识别时返回UNKNOWN
+     */
+    public static EventType of(byte[] data, int start, int end) {
+        return lookup.find(data, start, end, UNKNOWN);
+    }
+}
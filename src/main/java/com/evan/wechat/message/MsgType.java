@@ -0,0 +1,64 @@
+package com.evan.wechat.message;
+
+import com.evan.wechat.utils.EnumLookup;
+
+/**
+ * 请求消息类型（MsgType）
+ */
+public enum MsgType {
+    // 文本
+    TEXT("text"),
+    // 图片
+    IMAGE("image"),
+    // 语音
+    VOICE("voice"),
+    // 视频
+    VIDEO("video"),
+    // 小视频
+    SHORTVIDEO("shortvideo"),
+    // 地理位置
+    LOCATION("location"),
+    // 链接
+    LINK("link"),
+    // 事件推送
+    EVENT("event"),
+    // 未识别的类型
+    UNKNOWN(null);
+
+    private static final EnumLookup<MsgType> lookup = new EnumLookup<MsgType>(values(), MsgType::getValue, false);
+
+    private final String value;
+
+    MsgType(String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return XML中的取值，UNKNOWN为null
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * 按取值查找
+     *
+     * @param value 取值
+     * @return 消息类型，未识别时返回UNKNOWN
+     */
+    public static MsgType of(String value) {
+        return lookup.find(value, UNKNOWN);
+    }
+
+    /**
+     * 直接在原始字节上查找，不创建字符串
+     *
+     * @param data  字节
+     * @param start 起始位置
+     * @param end   结束位置（不含）
+     * @return 消息类型，未识别时返回UNKNOWN
+     */
+    public static MsgType of(byte[] data, int start, int end) {
+        return lookup.find(data, start, end, UNKNOWN);
+    }
+}
@@ -0,0 +1,156 @@
+package com.evan.wechat.message.resp;
+
+import com.alibaba.fastjson.JSON;
+import com.evan.wechat.utils.Utf8Writer;
+import com.evan.wechat.utils.XmlMessage;
+import com.evan.wechat.utils.XmlSerializer;
+import com.evan.wechat.utils.XmlWritable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 预渲染的固定回复
+ * <p>
+ * 关注欢迎语、菜单CLICK的固定文本等回复，除ToUserName、FromUserName、CreateTime外每次都相同。
+ * 创建模板时把其余部分一次性序列化为字节，回复时只需拼接这三个字段，不再构建消息对象也不再运行序列化。
+ * 模板创建后不可变，可在多线程间共享；模板保存的是消息对象的副本，创建后修改原消息对象不会影响模板。
+ */
+public final class ReplyTemplate {
+
+    // 每次回复时填入的字段
+    private static final List<String> VARIABLE_FIELDS = Arrays.asList("ToUserName", "FromUserName", "CreateTime");
+
+    private static final byte[] TO_USER_START = ascii("<xml><ToUserName>");
+    private static final byte[] FROM_USER_START = ascii("</ToUserName><FromUserName>");
+    private static final byte[] CREATE_TIME_START = ascii("</FromUserName><CreateTime>");
+    private static final byte[] CREATE_TIME_END = ascii("</CreateTime>");
+    private static final byte[] XML_END = ascii("</xml>");
+
+    private final BaseMessage prototype;
+    private final String msgType;
+    // MsgType及之后的所有字段
+    private final byte[] body;
+
+    private ReplyTemplate(BaseMessage prototype) {
+        this.prototype = copy(prototype);
+        this.msgType = prototype.getMsgType();
+        Utf8Writer writer = new Utf8Writer(512);
+        XmlSerializer.of(prototype.getClass()).writeProperties(prototype, writer, VARIABLE_FIELDS);
+        writer.write(XML_END);
+        this.body = writer.toByteArray();
+    }
+
+    /**
+     * 按消息对象创建模板，消息中的ToUserName、FromUserName、CreateTime会被忽略
+     *
+     * @param prototype 回复内容
+     * @return ReplyTemplate
+     */
+    public static ReplyTemplate of(BaseMessage prototype) {
+        if (null == prototype.getMsgType())
+            throw new IllegalArgumentException("MsgType must not be null");
+        return new ReplyTemplate(prototype);
+    }
+
+    /**
+     * 创建模板时的消息内容，供需要完整内容的场景使用（如改用客服消息发送）。每次返回新的副本，修改它不会影响模板
+     *
+     * @return 回复内容
+     */
+    public BaseMessage getPrototype() {
+        return copy(prototype);
+    }
+
+    /**
+     * 填入接收方、发送方及时间，写出完整回复
+     *
+     * @param out        输出
+     * @param toUser     接收方帐号（收到的OpenID）
+     * @param fromUser   开发者微信号
+     * @param createTime 消息创建时间
+     */
+    public void write(Utf8Writer out, String toUser, String fromUser, long createTime) {
+        out.write(TO_USER_START).writeCdata(null == toUser ? "" : toUser)
+                .write(FROM_USER_START).writeCdata(null == fromUser ? "" : fromUser)
+                .write(CREATE_TIME_START).write(createTime)
+                .write(CREATE_TIME_END).write(body);
+    }
+
+    /**
+     * 填入接收方、发送方及时间，直接写入输出流
+     *
+     * @param out        输出流
+     * @param toUser     接收方帐号（收到的OpenID）
+     * @param fromUser   开发者微信号
+     * @param createTime 消息创建时间
+     * @return 写出的字节数
+     * @throws IOException
+     */
+    public int writeTo(OutputStream out, String toUser, String fromUser, long createTime) throws IOException {
+        Utf8Writer writer = Utf8Writer.local();
+        write(writer, toUser, fromUser, createTime);
+        writer.writeTo(out);
+        return writer.size();
+    }
+
+    /**
+     * 填入接收方、发送方及时间，返回完整回复
+     *
+     * @param toUser     接收方帐号（收到的OpenID）
+     * @param fromUser   开发者微信号
+     * @param createTime 消息创建时间
+     * @return UTF-8编码的回复
+     */
+    public byte[] render(String toUser, String fromUser, long createTime) {
+        Utf8Writer writer = Utf8Writer.local();
+        write(writer, toUser, fromUser, createTime);
+        return writer.toByteArray();
+    }
+
+    /**
+     * 针对一条请求生成回复，可直接作为MessageHandler的返回值
+     *
+     * @param request 请求消息
+     * @return 回复消息
+     */
+    public Reply reply(XmlMessage request) {
+        return new Reply(this, request.get("FromUserName"), request.get("ToUserName"), System.currentTimeMillis() / 1000);
+    }
+
+    // 回复消息都是简单的JavaBean，按属性经JSON复制一份即为深拷贝
+    private static BaseMessage copy(BaseMessage message) {
+        return JSON.parseObject(JSON.toJSONString(message), message.getClass());
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 基于模板的回复，序列化时直接拼接预渲染的字节
+     */
+    public static final class Reply extends BaseMessage implements XmlWritable {
+        private final transient ReplyTemplate template;
+
+        Reply(ReplyTemplate template, String toUser, String fromUser, long createTime) {
+            this.template = template;
+            setToUserName(toUser);
+            setFromUserName(fromUser);
+            setCreateTime(createTime);
+            setMsgType(template.msgType);
+        }
+
+        public ReplyTemplate getTemplate() {
+            return template;
+        }
+
+        @Override
+        public void writeXml(Utf8Writer out) {
+            template.write(out, getToUserName(), getFromUserName(), getCreateTime());
+        }
+    }
+}
@@ -6,6 +6,8 @@ public class AccessToken {
     private String token;
     // 凭证有效时间，单位：秒
     private int expiresIn;
+    // 凭证过期的时间点，单位：毫秒
+    private long expiresAt;
 
     public String getToken() {
         return token;
@@ -22,4 +24,12 @@ public class AccessToken {
     public void setExpiresIn(int expiresIn) {
         this.expiresIn = expiresIn;
     }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
 }
\ No newline at end of file
@@ -6,6 +6,8 @@ public class WeixinOauth2Token {
     private String accessToken;
     // 凭证有效时长
     private int expiresIn;
+    // 凭证过期的时间点，单位：毫秒
+    private long expiresAt;
     // 用于刷新凭证
     private String refreshToken;
     // 用户标识
@@ -29,6 +31,14 @@ public class WeixinOauth2Token {
         this.expiresIn = expiresIn;
     }
 
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
     public String getRefreshToken() {
         return refreshToken;
     }
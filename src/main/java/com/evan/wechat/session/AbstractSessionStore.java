@@ -0,0 +1,256 @@
+package com.evan.wechat.session;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于时间轮的会话过期
+ * <p>
+ * 时间轮把ttl分成固定的格，每个会话按到期时间挂在对应的格上。访问会话只更新其访问时间，不移动位置；
+ * 时间轮转到该格时才检查：确已闲置超过ttl的清除，否则按新的到期时间重新挂到后面的格上。
+ * 因此访问是O(1)的，清除过期会话也不需要扫描全部会话。时间轮不使用后台线程，
+ * 由访问存储的线程顺带推进（只有拿到锁的线程推进，其他线程不等待）。
+ *
+ * @param <E> 条目类型，由子类决定会话数据的存放方式
+ */
+abstract class AbstractSessionStore<E extends AbstractSessionStore.Entry> implements SessionStore {
+
+    // 时间轮把ttl分成的格数
+    private static final int TICKS_PER_TTL = 256;
+    // 时间轮的格数，需大于TICKS_PER_TTL + 1
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * 会话条目
+     */
+    static class Entry {
+        final String openId;
+        // 最后访问时间，单位：毫秒
+        volatile long lastAccess;
+        // 已从存储中移除，时间轮转到时直接丢弃
+        volatile boolean removed;
+
+        Entry(String openId, long now) {
+            this.openId = openId;
+            this.lastAccess = now;
+        }
+    }
+
+    private final ConcurrentMap<String, E> entries = new ConcurrentHashMap<String, E>();
+    private final long ttl;
+    private final int maxEntries;
+    // 每格的时长，单位：毫秒
+    private final long tick;
+    private final ArrayDeque<E>[] wheel;
+    // 以下字段只在持有lock时访问
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentTick;
+
+    /**
+     * @param ttl        闲置多久后失效，单位：毫秒
+     * @param maxEntries 最多保存的会话数
+     */
+    @SuppressWarnings("unchecked")
+    AbstractSessionStore(long ttl, int maxEntries) {
+        if (ttl <= 0 || maxEntries <= 0)
+            throw new IllegalArgumentException("ttl and maxEntries must be positive");
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.tick = Math.max(1, ttl / TICKS_PER_TTL);
+        this.wheel = (ArrayDeque<E>[]) new ArrayDeque<?>[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = new ArrayDeque<E>();
+        this.currentTick = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * 创建条目，此时条目尚未对其他线程可见
+     */
+    abstract E newEntry(String openId, long now);
+
+    /**
+     * 读取条目中的会话，条目已被释放时返回null
+     */
+    abstract WechatSession load(E entry);
+
+    /**
+     * 把会话写入条目
+     */
+    abstract void store(E entry, WechatSession session);
+
+    /**
+     * 条目被移除后释放其占用的资源
+     */
+    abstract void release(E entry);
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public WechatSession get(String openId) {
+        long now = System.currentTimeMillis();
+        advance(now);
+        E entry = entries.get(openId);
+        if (null == entry)
+            return null;
+        if (now - entry.lastAccess >= ttl) {
+            expire(entry);
+            return null;
+        }
+        entry.lastAccess = now;
+        return load(entry);
+    }
+
+    @Override
+    public WechatSession getOrCreate(String openId) {
+        WechatSession session = get(openId);
+        if (null != session)
+            return session;
+        session = new WechatSession(openId, System.currentTimeMillis());
+        return insert(session);
+    }
+
+    @Override
+    public void save(WechatSession session) {
+        if (session.isInvalidated()) {
+            remove(session.getOpenId());
+            return;
+        }
+        E entry = entries.get(session.getOpenId());
+        if (null == entry || entry.removed) {
+            insert(session);
+            return;
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        store(entry, session);
+    }
+
+    // 写入新条目，已存在时以已存在的为准
+    private WechatSession insert(WechatSession session) {
+        long now = System.currentTimeMillis();
+        E entry = newEntry(session.getOpenId(), now);
+        try {
+            store(entry, session);
+        } catch (RuntimeException e) {
+            release(entry);
+            throw e;
+        }
+        E exists = entries.putIfAbsent(session.getOpenId(), entry);
+        if (null != exists) {
+            release(entry);
+            exists.lastAccess = now;
+            WechatSession loaded = load(exists);
+            return null != loaded ? loaded : session;
+        }
+        lock.lock();
+        try {
+            schedule(entry);
+        } finally {
+            lock.unlock();
+        }
+        if (entries.size() > maxEntries)
+            evict(entries.size() - maxEntries);
+        return session;
+    }
+
+    @Override
+    public void remove(String openId) {
+        E entry = entries.remove(openId);
+        if (null != entry) {
+            entry.removed = true;
+            release(entry);
+        }
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 立即推进时间轮，清除已过期的会话
+     */
+    public void expire() {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            turn(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void expire(E entry) {
+        if (entries.remove(entry.openId, entry)) {
+            entry.removed = true;
+            release(entry);
+        }
+    }
+
+    // 由访问线程顺带推进，已有线程在推进时直接返回
+    private void advance(long now) {
+        if (now / tick <= currentTick || !lock.tryLock())
+            return;
+        try {
+            turn(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void turn(long now) {
+        long target = now / tick;
+        if (target <= currentTick)
+            return;
+        long from = Math.max(currentTick + 1, target - WHEEL_SIZE + 1);
+        currentTick = target;
+        for (long t = from; t <= target; t++) {
+            ArrayDeque<E> slot = wheel[(int) (t & (WHEEL_SIZE - 1))];
+            for (int n = slot.size(); n > 0; n--) {
+                E entry = slot.poll();
+                if (entry.removed)
+                    continue;
+                if (now - entry.lastAccess >= ttl)
+                    expire(entry);
+                else
+                    schedule(entry);
+            }
+        }
+    }
+
+    // 按到期时间挂到对应的格上
+    private void schedule(E entry) {
+        long deadline = Math.max((entry.lastAccess + ttl) / tick, currentTick + 1);
+        wheel[(int) (deadline & (WHEEL_SIZE - 1))].add(entry);
+    }
+
+    /**
+     * 从最近要到期的格开始淘汰会话，不论是否已过期
+     *
+     * @param count 淘汰的数量
+     */
+    void evict(int count) {
+        lock.lock();
+        try {
+            for (long t = currentTick + 1; count > 0 && t <= currentTick + WHEEL_SIZE; t++) {
+                ArrayDeque<E> slot = wheel[(int) (t & (WHEEL_SIZE - 1))];
+                while (count > 0 && !slot.isEmpty()) {
+                    E entry = slot.poll();
+                    if (entry.removed)
+                        continue;
+                    expire(entry);
+                    count--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.evan.wechat.session;
+
+/**
+ * 堆内会话存储
+ * <p>
+ * 会话对象直接保存在条目中，处理器对会话的修改立即生效，save只刷新访问时间。
+ * <pre>
+ * SessionStore store = new MemorySessionStore(30 * 60 * 1000, 100000);
+ * </pre>
+ */
+public class MemorySessionStore extends AbstractSessionStore<MemorySessionStore.SessionEntry> {
+
+    // 默认闲置30分钟失效
+    public static final long DEFAULT_TTL = 30 * 60 * 1000;
+    // 默认最多保存的会话数
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    public MemorySessionStore() {
+        this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttl        闲置多久后失效，单位：毫秒
+     * @param maxEntries 最多保存的会话数
+     */
+    public MemorySessionStore(long ttl, int maxEntries) {
+        super(ttl, maxEntries);
+    }
+
+    static final class SessionEntry extends AbstractSessionStore.Entry {
+        volatile WechatSession session;
+
+        SessionEntry(String openId, long now) {
+            super(openId, now);
+        }
+    }
+
+    @Override
+    SessionEntry newEntry(String openId, long now) {
+        return new SessionEntry(openId, now);
+    }
+
+    @Override
+    WechatSession load(SessionEntry entry) {
+        return entry.session;
+    }
+
+    @Override
+    void store(SessionEntry entry, WechatSession session) {
+        entry.session = session;
+    }
+
+    @Override
+    void release(SessionEntry entry) {
+        entry.session = null;
+    }
+}
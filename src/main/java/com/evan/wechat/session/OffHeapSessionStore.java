@@ -0,0 +1,176 @@
+package com.evan.wechat.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 堆外会话存储
+ * <p>
+ * 会话属性序列化后保存在直接内存的定长槽位中，堆内只保留OpenID与槽位号，
+ * 大量闲置会话不再占用GC堆。槽位在创建时一次分配（slotSize × maxEntries），
+ * 序列化后超过槽位大小的会话无法保存。每次get都会反序列化出新的会话对象，修改后需save写回。
+ * <pre>
+ * SessionStore store = new OffHeapSessionStore(30 * 60 * 1000, 2000000, 256);
+ * </pre>
+ */
+public class OffHeapSessionStore extends AbstractSessionStore<OffHeapSessionStore.SlotEntry> {
+
+    // 默认槽位大小，单位：字节
+    public static final int DEFAULT_SLOT_SIZE = 512;
+    // 单块直接内存的上限
+    private static final int MAX_SLAB_SIZE = 1 << 30;
+
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final ByteBuffer[] slabs;
+    // 空闲槽位栈，只在持有自身锁时访问
+    private final int[] freeSlots;
+    private int freeCount;
+
+    /**
+     * @param ttl        闲置多久后失效，单位：毫秒
+     * @param maxEntries 最多保存的会话数
+     */
+    public OffHeapSessionStore(long ttl, int maxEntries) {
+        this(ttl, maxEntries, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * @param ttl        闲置多久后失效，单位：毫秒
+     * @param maxEntries 最多保存的会话数
+     * @param slotSize   每个会话序列化后的最大字节数
+     */
+    public OffHeapSessionStore(long ttl, int maxEntries, int slotSize) {
+        super(ttl, maxEntries);
+        if (slotSize < 16 || slotSize > MAX_SLAB_SIZE)
+            throw new IllegalArgumentException("invalid slotSize " + slotSize);
+        this.slotSize = slotSize;
+        this.slotsPerSlab = MAX_SLAB_SIZE / slotSize;
+        int slabCount = (maxEntries + slotsPerSlab - 1) / slotsPerSlab;
+        this.slabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            int slots = Math.min(slotsPerSlab, maxEntries - i * slotsPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(slots * slotSize);
+        }
+        this.freeSlots = new int[maxEntries];
+        for (int i = 0; i < maxEntries; i++)
+            freeSlots[i] = maxEntries - 1 - i;
+        this.freeCount = maxEntries;
+    }
+
+    static final class SlotEntry extends AbstractSessionStore.Entry {
+        final int slot;
+        // 槽位已归还，只在持有条目锁时访问
+        boolean freed;
+
+        SlotEntry(String openId, long now, int slot) {
+            super(openId, now);
+            this.slot = slot;
+        }
+    }
+
+    @Override
+    SlotEntry newEntry(String openId, long now) {
+        int slot = allocate();
+        if (slot < 0) {
+            // 槽位用完时先淘汰最早到期的会话
+            evict(1);
+            slot = allocate();
+            if (slot < 0)
+                throw new IllegalStateException("session store is full");
+        }
+        return new SlotEntry(openId, now, slot);
+    }
+
+    private int allocate() {
+        synchronized (freeSlots) {
+            return 0 == freeCount ? -1 : freeSlots[--freeCount];
+        }
+    }
+
+    @Override
+    WechatSession load(SlotEntry entry) {
+        byte[] data;
+        long creationTime;
+        synchronized (entry) {
+            if (entry.freed)
+                return null;
+            ByteBuffer slab = slab(entry.slot);
+            int offset = offset(entry.slot);
+            creationTime = slab.getLong(offset);
+            int length = slab.getInt(offset + 8);
+            data = new byte[length];
+            ByteBuffer view = slab.duplicate();
+            view.position(offset + 12);
+            view.get(data);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int count = in.readInt();
+            Map<String, String> attributes = new ConcurrentHashMap<String, String>(Math.max(16, count * 2));
+            for (int i = 0; i < count; i++)
+                attributes.put(in.readUTF(), in.readUTF());
+            return new WechatSession(entry.openId, creationTime, attributes);
+        } catch (IOException e) {
+            throw new IllegalStateException("corrupted session of " + entry.openId, e);
+        }
+    }
+
+    @Override
+    void store(SlotEntry entry, WechatSession session) {
+        byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(slotSize);
+            DataOutputStream out = new DataOutputStream(bytes);
+            Map<String, String> attributes = session.attributes();
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                out.writeUTF(attribute.getKey());
+                out.writeUTF(attribute.getValue());
+            }
+            out.flush();
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (12 + data.length > slotSize)
+            throw new IllegalArgumentException("session of " + session.getOpenId() + " exceeds slot size " + slotSize);
+        synchronized (entry) {
+            if (entry.freed)
+                return;
+            ByteBuffer slab = slab(entry.slot);
+            int offset = offset(entry.slot);
+            slab.putLong(offset, session.getCreationTime());
+            slab.putInt(offset + 8, data.length);
+            ByteBuffer view = slab.duplicate();
+            view.position(offset + 12);
+            view.put(data);
+        }
+    }
+
+    @Override
+    void release(SlotEntry entry) {
+        synchronized (entry) {
+            if (entry.freed)
+                return;
+            entry.freed = true;
+        }
+        synchronized (freeSlots) {
+            freeSlots[freeCount++] = entry.slot;
+        }
+    }
+
+    private ByteBuffer slab(int slot) {
+        return slabs[slot / slotsPerSlab];
+    }
+
+    private int offset(int slot) {
+        return slot % slotsPerSlab * slotSize;
+    }
+}
@@ -0,0 +1,44 @@
+package com.evan.wechat.session;
+
+/**
+ * 会话存储，以FromUserName（OpenID）为键
+ * <p>
+ * 会话在最后一次访问后闲置超过ttl即失效，条目数超过上限时提前淘汰最早到期的会话。
+ */
+public interface SessionStore {
+
+    /**
+     * 取得会话并刷新访问时间
+     *
+     * @param openId 用户的OpenID
+     * @return 会话，不存在或已失效时返回null
+     */
+    WechatSession get(String openId);
+
+    /**
+     * 取得会话，不存在时创建
+     *
+     * @param openId 用户的OpenID
+     * @return 会话
+     */
+    WechatSession getOrCreate(String openId);
+
+    /**
+     * 写回修改后的会话，会话已失效时重新保存，已调用invalidate的会话则移除
+     *
+     * @param session 会话
+     */
+    void save(WechatSession session);
+
+    /**
+     * 移除会话
+     *
+     * @param openId 用户的OpenID
+     */
+    void remove(String openId);
+
+    /**
+     * @return 会话数，含已失效但尚未清除的
+     */
+    int size();
+}
@@ -0,0 +1,84 @@
+package com.evan.wechat.session;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一个用户（OpenID）的会话，保存多步交互（表单、答题、绑定等）在两次回调之间的状态
+ * <p>
+ * 属性值为字符串，以便会话可以保存到堆外。修改属性后需调用 {@link SessionStore#save(WechatSession)}
+ * 写回，经由路由注入的会话在处理器返回后自动写回。
+ */
+public class WechatSession {
+    // 用户的OpenID
+    private final String openId;
+    // 创建时间，单位：毫秒
+    private final long creationTime;
+    private final Map<String, String> attributes;
+    // 已结束，写回时从存储中移除
+    private volatile boolean invalidated;
+
+    WechatSession(String openId, long creationTime) {
+        this(openId, creationTime, new ConcurrentHashMap<String, String>());
+    }
+
+    WechatSession(String openId, long creationTime, Map<String, String> attributes) {
+        this.openId = openId;
+        this.creationTime = creationTime;
+        this.attributes = attributes;
+    }
+
+    public String getOpenId() {
+        return openId;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * 设置属性，value为null时移除
+     */
+    public void setAttribute(String name, String value) {
+        if (null == value)
+            attributes.remove(name);
+        else
+            attributes.put(name, value);
+    }
+
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    public Set<String> getAttributeNames() {
+        return Collections.unmodifiableSet(attributes.keySet());
+    }
+
+    /**
+     * 清空属性，如多步流程结束时
+     */
+    public void clear() {
+        attributes.clear();
+    }
+
+    /**
+     * 结束会话，经由路由注入的会话在处理器返回后从存储中移除
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    Map<String, String> attributes() {
+        return attributes;
+    }
+}
@@ -0,0 +1,285 @@
+package com.evan.wechat.token;
+
+import com.evan.wechat.model.AccessToken;
+import com.evan.wechat.utils.WeixinUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * access_token管理
+ * <p>
+ * 按过期时间点缓存access_token，并在过期前由后台线程提前刷新，调用方读取时只有一次volatile读，不加锁。
+ * 同一时刻最多只有一个刷新请求：缓存缺失或过期时，并发的调用方等待同一个刷新结果，
+ * 不会各自请求微信接口而耗尽每日2000次的额度。
+ * <p>
+ * 多个节点共用一个公众号时传入 {@link TokenStore}：刷新时先读取共享存储，只有取得租约的节点请求微信接口，
+ * 避免各节点互相把对方的凭证刷新失效。
+ * <pre>
+ * AccessTokenManager tokens = new AccessTokenManager(appId, appSecret);
+ * WeixinUtil.createMenu(menu, tokens.getToken());
+ * </pre>
+ */
+public class AccessTokenManager implements Supplier<String> {
+
+    private static Logger log = LoggerFactory.getLogger(AccessTokenManager.class);
+
+    // 默认提前5分钟刷新
+    public static final long DEFAULT_REFRESH_AHEAD = 5 * 60 * 1000;
+    // 视为过期的余量，避免带着即将过期的凭证发出请求
+    private static final long EXPIRY_MARGIN = 60 * 1000;
+    // 后台刷新失败后的重试间隔
+    private static final long RETRY_INTERVAL = 30 * 1000;
+
+    // 由要替换的凭证（可为null）得到新凭证
+    private final Function<AccessToken, AccessToken> loader;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+    private final long refreshAhead;
+
+    private volatile AccessToken current;
+    // 进行中的刷新
+    private final AtomicReference<CompletableFuture<AccessToken>> inflight = new AtomicReference<CompletableFuture<AccessToken>>();
+    // 已安排的后台刷新，只在持有this锁时访问
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * 通过WeixinUtil.getAccessToken获取凭证，使用自带的后台线程刷新
+     *
+     * @param appId     公众号AppId
+     * @param appSecret 公众号AppSecret
+     */
+    public AccessTokenManager(String appId, String appSecret) {
+        this(stale -> WeixinUtil.getAccessToken(appId, appSecret), newScheduler("wechat-token-refresh"), true, DEFAULT_REFRESH_AHEAD);
+    }
+
+    /**
+     * 通过共享存储协调多个节点的刷新，使用自带的后台线程刷新
+     *
+     * @param appId     公众号AppId
+     * @param appSecret 公众号AppSecret
+     * @param store     共享存储
+     */
+    public AccessTokenManager(String appId, String appSecret, TokenStore store) {
+        this(new SharedTokenLoader(appId, () -> WeixinUtil.getAccessToken(appId, appSecret), store, EXPIRY_MARGIN),
+                newScheduler("wechat-token-refresh"), true, DEFAULT_REFRESH_AHEAD);
+    }
+
+    /**
+     * 通过共享存储协调多个节点的刷新
+     *
+     * @param appId        公众号AppId
+     * @param loader       请求微信接口获取凭证，失败时返回null或抛出异常
+     * @param store        共享存储
+     * @param scheduler    执行后台刷新的线程池
+     * @param refreshAhead 提前多久刷新，单位：毫秒
+     */
+    public AccessTokenManager(String appId, Supplier<AccessToken> loader, TokenStore store,
+                              ScheduledExecutorService scheduler, long refreshAhead) {
+        this(new SharedTokenLoader(appId, loader, store, EXPIRY_MARGIN), scheduler, false, refreshAhead);
+    }
+
+    /**
+     * @param loader       获取凭证，失败时返回null或抛出异常
+     * @param scheduler    执行后台刷新的线程池
+     * @param refreshAhead 提前多久刷新，单位：毫秒
+     */
+    public AccessTokenManager(Supplier<AccessToken> loader, ScheduledExecutorService scheduler, long refreshAhead) {
+        this(null == loader ? null : stale -> loader.get(), scheduler, false, refreshAhead);
+    }
+
+    /**
+     * 使用自带的后台线程刷新，shutdown时一并关闭，供同包内缓存其他凭证（如jsapi_ticket）的服务使用
+     *
+     * @param loader     获取凭证，失败时返回null或抛出异常
+     * @param threadName 后台线程名
+     */
+    AccessTokenManager(Supplier<AccessToken> loader, String threadName) {
+        this(null == loader ? null : stale -> loader.get(), newScheduler(threadName), true, DEFAULT_REFRESH_AHEAD);
+    }
+
+    private AccessTokenManager(Function<AccessToken, AccessToken> loader, ScheduledExecutorService scheduler, boolean ownScheduler, long refreshAhead) {
+        if (null == loader || null == scheduler)
+            throw new IllegalArgumentException("loader and scheduler must not be null");
+        this.loader = loader;
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+        this.refreshAhead = refreshAhead;
+    }
+
+    private static ScheduledExecutorService newScheduler(String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String get() {
+        return getToken();
+    }
+
+    /**
+     * 取得有效的access_token，缓存缺失或过期时等待刷新
+     *
+     * @return access_token
+     * @throws IllegalStateException 刷新失败且没有可用的凭证
+     */
+    public String getToken() {
+        AccessToken token = current;
+        if (null != token && System.currentTimeMillis() < token.getExpiresAt() - EXPIRY_MARGIN)
+            return token.getToken();
+        try {
+            return await(refresh(token)).getToken();
+        } catch (RuntimeException e) {
+            // 刷新失败时，余量内的旧凭证仍然可用
+            if (null != token && System.currentTimeMillis() < token.getExpiresAt())
+                return token.getToken();
+            throw e;
+        }
+    }
+
+    /**
+     * 取得缓存中未过期的access_token，不触发刷新，供不能阻塞的调用方使用
+     *
+     * @return access_token，缓存缺失或即将过期时返回null
+     */
+    public String getCachedToken() {
+        AccessToken token = current;
+        if (null != token && System.currentTimeMillis() < token.getExpiresAt() - EXPIRY_MARGIN)
+            return token.getToken();
+        return null;
+    }
+
+    /**
+     * 判断微信接口返回的错误码是否表示access_token无效：40001（凭证无效或已被新凭证替换）、
+     * 40014（不合法的凭证）、42001（凭证超时）
+     *
+     * @param errcode 错误码
+     * @return 是否需要刷新凭证
+     */
+    public static boolean isTokenError(int errcode) {
+        return 40001 == errcode || 40014 == errcode || 42001 == errcode;
+    }
+
+    /**
+     * 作废被微信拒绝的凭证并取得新凭证。并发调用方拿着同一个失效凭证时只刷新一次；
+     * 凭证已被替换时直接返回当前凭证
+     *
+     * @param rejected 被拒绝的access_token
+     * @return 新的access_token
+     * @throws IllegalStateException 刷新失败
+     */
+    public String renew(String rejected) {
+        AccessToken token = current;
+        if (null != token && !token.getToken().equals(rejected)
+                && System.currentTimeMillis() < token.getExpiresAt() - EXPIRY_MARGIN)
+            return token.getToken();
+        // 以当前缓存为stale强制刷新，刷新失败时不再使用被拒绝的凭证
+        return await(refresh(token)).getToken();
+    }
+
+    /**
+     * @return 当前缓存的凭证，可能为null或已过期
+     */
+    public AccessToken getCurrent() {
+        return current;
+    }
+
+    /**
+     * 刷新凭证。已有刷新在进行时返回同一个结果；缓存已不是stale时直接返回缓存
+     *
+     * @param stale 调用方认为需要替换的凭证，为null时只要没有可用的缓存就刷新
+     * @return 刷新结果
+     */
+    public CompletableFuture<AccessToken> refresh(AccessToken stale) {
+        while (true) {
+            CompletableFuture<AccessToken> running = inflight.get();
+            if (null != running)
+                return running;
+            CompletableFuture<AccessToken> mine = new CompletableFuture<AccessToken>();
+            if (!inflight.compareAndSet(null, mine))
+                continue;
+            // 可能在调用方读取后已被其他线程刷新
+            AccessToken latest = current;
+            if (null != latest && latest != stale && System.currentTimeMillis() < latest.getExpiresAt() - EXPIRY_MARGIN) {
+                inflight.set(null);
+                mine.complete(latest);
+                return mine;
+            }
+            load(mine, latest);
+            return mine;
+        }
+    }
+
+    private void load(CompletableFuture<AccessToken> result, AccessToken stale) {
+        AccessToken token;
+        try {
+            token = loader.apply(stale);
+            if (null == token || null == token.getToken())
+                throw new IllegalStateException("获取access_token失败");
+            if (0 == token.getExpiresAt())
+                token.setExpiresAt(System.currentTimeMillis() + token.getExpiresIn() * 1000L);
+        } catch (RuntimeException e) {
+            inflight.set(null);
+            result.completeExceptionally(e);
+            // 从未取得过凭证时不在后台重试，由下一次调用触发
+            if (null != current)
+                schedule(RETRY_INTERVAL);
+            return;
+        }
+        current = token;
+        // 先清除再完成，等待方醒来后读到的一定是新凭证
+        inflight.set(null);
+        result.complete(token);
+        long delay = token.getExpiresAt() - refreshAhead - System.currentTimeMillis();
+        schedule(delay > 0 ? delay : token.getExpiresIn() * 500L);
+    }
+
+    // 安排下一次后台刷新，替换之前安排的
+    private synchronized void schedule(long delay) {
+        if (null != scheduled)
+            scheduled.cancel(false);
+        if (scheduler.isShutdown())
+            return;
+        final AccessToken token = current;
+        scheduled = scheduler.schedule(() -> {
+            CompletableFuture<AccessToken> future = refresh(token);
+            future.whenComplete((t, e) -> {
+                if (null != e)
+                    log.error("后台刷新access_token失败", e);
+            });
+        }, Math.max(delay, 1000), TimeUnit.MILLISECONDS);
+    }
+
+    private static AccessToken await(CompletableFuture<AccessToken> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 停止后台刷新，使用自带线程池时一并关闭
+     */
+    public synchronized void shutdown() {
+        if (null != scheduled)
+            scheduled.cancel(false);
+        if (ownScheduler)
+            scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,104 @@
+package com.evan.wechat.token;
+
+import com.alibaba.fastjson.JSONObject;
+import com.evan.wechat.model.AccessToken;
+import com.evan.wechat.utils.SignatureUtil;
+import com.evan.wechat.utils.WeixinUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * JS-SDK权限验证配置
+ * <p>
+ * jsapi_ticket与access_token一样有效期7200秒、每日调用次数有限，这里复用AccessTokenManager缓存：
+ * 过期前后台提前刷新，并发的页面请求只触发一次获取，读取时只有一次volatile读。
+ * 签名使用线程私有的SHA-1摘要并按查表方式编码十六进制，每次页面加载不再创建MessageDigest。
+ * <pre>
+ * JsSdkConfigService jsSdk = new JsSdkConfigService(appId, tokens);
+ * Map&lt;String, Object&gt; config = jsSdk.getConfig(request.getRequestURL() + "?" + request.getQueryString());
+ * </pre>
+ */
+public class JsSdkConfigService {
+
+    private static Logger log = LoggerFactory.getLogger(JsSdkConfigService.class);
+
+    private final String appId;
+    private final AccessTokenManager tickets;
+
+    /**
+     * 使用自带的后台线程刷新jsapi_ticket
+     *
+     * @param appId  公众号AppId
+     * @param tokens access_token管理
+     */
+    public JsSdkConfigService(String appId, AccessTokenManager tokens) {
+        this.appId = appId;
+        this.tickets = new AccessTokenManager(() -> fetchTicket(tokens), "wechat-ticket-refresh");
+    }
+
+    /**
+     * @param appId     公众号AppId
+     * @param tokens    access_token管理
+     * @param scheduler 执行后台刷新的线程池
+     */
+    public JsSdkConfigService(String appId, AccessTokenManager tokens, ScheduledExecutorService scheduler) {
+        this.appId = appId;
+        this.tickets = new AccessTokenManager(() -> fetchTicket(tokens), scheduler, AccessTokenManager.DEFAULT_REFRESH_AHEAD);
+    }
+
+    // 获取jsapi_ticket，以AccessToken的形式交给AccessTokenManager缓存
+    private static AccessToken fetchTicket(AccessTokenManager tokens) {
+        long requestTime = System.currentTimeMillis();
+        JSONObject json = WeixinUtil.httpsRequest(WeixinUtil.jsapi_ticket_url, "GET", null, tokens);
+        if (null == json)
+            return null;
+        if (0 != json.getIntValue("errcode")) {
+            log.error("获取jsapi_ticket失败 errcode:{} errmsg:{}", json.getIntValue("errcode"), json.getString("errmsg"));
+            return null;
+        }
+        AccessToken ticket = new AccessToken();
+        ticket.setToken(json.getString("ticket"));
+        ticket.setExpiresIn(json.getIntValue("expires_in"));
+        ticket.setExpiresAt(requestTime + ticket.getExpiresIn() * 1000L);
+        return ticket;
+    }
+
+    /**
+     * @return 有效的jsapi_ticket
+     */
+    public String getTicket() {
+        return tickets.getToken();
+    }
+
+    /**
+     * 生成wx.config所需的参数：appId、timestamp、nonceStr、signature。
+     * jsapi_ticket不返回给页面
+     *
+     * @param url 当前网页的URL，#及其后面的部分会被去掉
+     * @return 配置
+     */
+    public Map<String, Object> getConfig(String url) {
+        int hash = url.indexOf('#');
+        if (hash >= 0)
+            url = url.substring(0, hash);
+        String timestamp = Long.toString(System.currentTimeMillis() / 1000);
+        String nonceStr = SignatureUtil.nonceStr();
+        Map<String, Object> config = new HashMap<String, Object>(8);
+        config.put("appId", appId);
+        config.put("timestamp", timestamp);
+        config.put("nonceStr", nonceStr);
+        config.put("signature", SignatureUtil.jsapiSignature(getTicket(), nonceStr, timestamp, url));
+        return config;
+    }
+
+    /**
+     * 停止后台刷新，使用自带线程时一并关闭
+     */
+    public void shutdown() {
+        tickets.shutdown();
+    }
+}
@@ -0,0 +1,216 @@
+package com.evan.wechat.token;
+
+import com.evan.wechat.model.AccessToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 基于内存映射文件的TokenStore，供同一台机器上的多个JVM共享凭证，也便于在没有Redis的环境下测试
+ * <p>
+ * 每个公众号一个文件（目录下的 AppId.token），映射后直接读写；跨进程的互斥使用FileLock，
+ * 读取时加共享锁，写入凭证和租约时加排他锁。FileLock在同一JVM内不可重叠，
+ * 因此同一目录在每个JVM中只应创建一个实例。
+ * <p>
+ * 文件布局（1KB）：版本号(int) | expiresAt(long) | expiresIn(int) | 凭证长度(short) 凭证(ASCII) |
+ * 偏移768处：租约到期时间(long) | 持有者长度(short) 持有者(UTF-8)
+ */
+public class MappedFileTokenStore implements TokenStore, Closeable {
+
+    private static final int FILE_SIZE = 1024;
+    private static final int VERSION = 1;
+
+    private static final int VERSION_OFFSET = 0;
+    private static final int EXPIRES_AT_OFFSET = 4;
+    private static final int EXPIRES_IN_OFFSET = 12;
+    private static final int TOKEN_OFFSET = 16;
+    // 凭证长度上限，微信的access_token不超过512字节
+    private static final int MAX_TOKEN_LENGTH = 700;
+    private static final int LEASE_OFFSET = 768;
+    private static final int OWNER_OFFSET = LEASE_OFFSET + 8;
+    private static final int MAX_OWNER_LENGTH = FILE_SIZE - OWNER_OFFSET - 2;
+
+    private final Path directory;
+    private final ConcurrentMap<String, Mapping> mappings = new ConcurrentHashMap<String, Mapping>();
+
+    /**
+     * @param directory 存放凭证文件的目录，不存在时创建
+     * @throws IOException
+     */
+    public MappedFileTokenStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public AccessToken load(String appId) {
+        Mapping mapping = mapping(appId);
+        synchronized (mapping) {
+            try {
+                FileLock lock = mapping.channel.lock(0, FILE_SIZE, true);
+                try {
+                    MappedByteBuffer buffer = mapping.buffer;
+                    if (VERSION != buffer.getInt(VERSION_OFFSET))
+                        return null;
+                    int length = buffer.getShort(TOKEN_OFFSET);
+                    if (length <= 0 || length > MAX_TOKEN_LENGTH)
+                        return null;
+                    AccessToken token = new AccessToken();
+                    token.setExpiresAt(buffer.getLong(EXPIRES_AT_OFFSET));
+                    token.setExpiresIn(buffer.getInt(EXPIRES_IN_OFFSET));
+                    token.setToken(readString(buffer, TOKEN_OFFSET, length));
+                    return token;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void save(String appId, AccessToken token) {
+        byte[] bytes = token.getToken().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_TOKEN_LENGTH)
+            throw new IllegalArgumentException("access_token too long: " + bytes.length);
+        Mapping mapping = mapping(appId);
+        synchronized (mapping) {
+            try {
+                FileLock lock = mapping.channel.lock();
+                try {
+                    MappedByteBuffer buffer = mapping.buffer;
+                    // 先作废再写入，写入过程中崩溃时读取方视为没有凭证
+                    buffer.putInt(VERSION_OFFSET, 0);
+                    buffer.putLong(EXPIRES_AT_OFFSET, token.getExpiresAt());
+                    buffer.putInt(EXPIRES_IN_OFFSET, token.getExpiresIn());
+                    writeString(buffer, TOKEN_OFFSET, bytes);
+                    buffer.putInt(VERSION_OFFSET, VERSION);
+                    buffer.force();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLease(String appId, String owner, long millis) {
+        byte[] ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+        if (ownerBytes.length > MAX_OWNER_LENGTH)
+            throw new IllegalArgumentException("owner too long: " + owner);
+        Mapping mapping = mapping(appId);
+        synchronized (mapping) {
+            try {
+                FileLock lock = mapping.channel.lock();
+                try {
+                    MappedByteBuffer buffer = mapping.buffer;
+                    long now = System.currentTimeMillis();
+                    long until = buffer.getLong(LEASE_OFFSET);
+                    if (now < until && !owner.equals(readOwner(buffer)))
+                        return false;
+                    writeString(buffer, OWNER_OFFSET, ownerBytes);
+                    buffer.putLong(LEASE_OFFSET, now + millis);
+                    buffer.force();
+                    return true;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void releaseLease(String appId, String owner) {
+        Mapping mapping = mapping(appId);
+        synchronized (mapping) {
+            try {
+                FileLock lock = mapping.channel.lock();
+                try {
+                    MappedByteBuffer buffer = mapping.buffer;
+                    if (owner.equals(readOwner(buffer))) {
+                        buffer.putLong(LEASE_OFFSET, 0);
+                        buffer.force();
+                    }
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Mapping mapping : mappings.values()) {
+            synchronized (mapping) {
+                mapping.channel.close();
+            }
+        }
+        mappings.clear();
+    }
+
+    private Mapping mapping(String appId) {
+        Mapping mapping = mappings.get(appId);
+        if (null != mapping)
+            return mapping;
+        return mappings.computeIfAbsent(appId, id -> {
+            if (!id.matches("[A-Za-z0-9_-]+"))
+                throw new IllegalArgumentException("invalid appId " + id);
+            try {
+                FileChannel channel = FileChannel.open(directory.resolve(id + ".token"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                // 新建的文件映射时自动扩展并以0填充，版本号为0即没有凭证
+                return new Mapping(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static String readOwner(MappedByteBuffer buffer) {
+        int length = buffer.getShort(OWNER_OFFSET);
+        return length <= 0 || length > MAX_OWNER_LENGTH ? null : readString(buffer, OWNER_OFFSET, length);
+    }
+
+    // 偏移处为长度(short)，其后为内容
+    private static String readString(MappedByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(offset + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(MappedByteBuffer buffer, int offset, byte[] bytes) {
+        buffer.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++)
+            buffer.put(offset + 2 + i, bytes[i]);
+    }
+
+    /**
+     * 一个公众号的凭证文件
+     */
+    private static final class Mapping {
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Mapping(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.evan.wechat.token;
+
+import com.alibaba.fastjson.JSONObject;
+import com.evan.wechat.model.SNSUserInfo;
+import com.evan.wechat.model.WeixinOauth2Token;
+import com.evan.wechat.utils.WeixinUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 网页授权
+ * <p>
+ * 按openid缓存网页授权凭证，过期后使用refresh_token续期（30天内无需用户重新授权），
+ * 同一openid的并发续期只请求一次；用户信息按ttl缓存，已登录过的用户再次授权时只需换取凭证一次请求。
+ * code只能使用一次且5分钟内有效，已使用过的code直接拒绝，不再请求微信接口。
+ * 各缓存为有界的LRU，超出上限时淘汰最久未使用的条目。
+ * <pre>
+ * Oauth2Service oauth2 = new Oauth2Service(appId, appSecret);
+ * SNSUserInfo user = oauth2.loginUserInfo(request.getParameter("code"));
+ * </pre>
+ */
+public class Oauth2Service {
+
+    private static Logger log = LoggerFactory.getLogger(Oauth2Service.class);
+
+    // 默认缓存的用户数
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    // 默认用户信息缓存时间，单位：毫秒
+    public static final long DEFAULT_USER_INFO_TTL = 30 * 60 * 1000;
+    // refresh_token有效期30天，单位：毫秒
+    private static final long REFRESH_TOKEN_TTL = 30L * 24 * 60 * 60 * 1000;
+    // code有效期5分钟，单位：毫秒
+    private static final long CODE_TTL = 5 * 60 * 1000;
+    // 视为过期的余量，单位：毫秒
+    private static final long EXPIRY_MARGIN = 60 * 1000;
+
+    private final String appId;
+    private final String appSecret;
+    private final long userInfoTtl;
+    private final ExpiringCache<WeixinOauth2Token> tokens;
+    private final ExpiringCache<SNSUserInfo> userInfos;
+    private final ExpiringCache<Boolean> usedCodes;
+    private final ConcurrentMap<String, CompletableFuture<WeixinOauth2Token>> renewing =
+            new ConcurrentHashMap<String, CompletableFuture<WeixinOauth2Token>>();
+
+    /**
+     * 使用默认的缓存上限和用户信息缓存时间
+     *
+     * @param appId     公众账号的唯一标识
+     * @param appSecret 公众账号的密钥
+     */
+    public Oauth2Service(String appId, String appSecret) {
+        this(appId, appSecret, DEFAULT_MAX_ENTRIES, DEFAULT_USER_INFO_TTL);
+    }
+
+    /**
+     * @param appId       公众账号的唯一标识
+     * @param appSecret   公众账号的密钥
+     * @param maxEntries  最多缓存的用户数
+     * @param userInfoTtl 用户信息缓存时间，单位：毫秒
+     */
+    public Oauth2Service(String appId, String appSecret, int maxEntries, long userInfoTtl) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.appId = appId;
+        this.appSecret = appSecret;
+        this.userInfoTtl = userInfoTtl;
+        this.tokens = new ExpiringCache<WeixinOauth2Token>(maxEntries);
+        this.userInfos = new ExpiringCache<SNSUserInfo>(maxEntries);
+        this.usedCodes = new ExpiringCache<Boolean>(maxEntries);
+    }
+
+    /**
+     * 使用code换取网页授权凭证并缓存
+     *
+     * @param code 授权回调带回的code
+     * @return 网页授权凭证，code重复使用或换取失败时返回null
+     */
+    public WeixinOauth2Token login(String code) {
+        if (null == code || code.isEmpty())
+            return null;
+        long now = System.currentTimeMillis();
+        if (null != usedCodes.putIfAbsent(code, Boolean.TRUE, now + CODE_TTL, now)) {
+            // code可换取用户凭证，不写入日志
+            log.warn("网页授权code重复使用");
+            return null;
+        }
+        WeixinOauth2Token token = WeixinUtil.getOauth2AccessToken(appId, appSecret, code);
+        if (null == token || null == token.getOpenId())
+            return null;
+        tokens.put(token.getOpenId(), token, now + REFRESH_TOKEN_TTL);
+        return token;
+    }
+
+    /**
+     * 使用code登录并获取用户信息（scope为snsapi_userinfo）。缓存中有未过期的用户信息时不再请求
+     *
+     * @param code 授权回调带回的code
+     * @return 用户信息，code重复使用或获取失败时返回null
+     */
+    public SNSUserInfo loginUserInfo(String code) {
+        WeixinOauth2Token token = login(code);
+        if (null == token)
+            return null;
+        SNSUserInfo cached = userInfos.get(token.getOpenId(), System.currentTimeMillis());
+        if (null != cached)
+            return cached;
+        return loadUserInfo(token);
+    }
+
+    /**
+     * 获取用户的网页授权凭证，已过期时使用refresh_token续期
+     *
+     * @param openId 用户标识
+     * @return 网页授权凭证，未登录或refresh_token失效时返回null，需要用户重新授权；
+     * 续期请求因网络等原因失败时也返回null，但保留缓存的refresh_token，下次调用再续期
+     */
+    public WeixinOauth2Token getToken(String openId) {
+        long now = System.currentTimeMillis();
+        WeixinOauth2Token token = tokens.get(openId, now);
+        if (null == token)
+            return null;
+        if (now < token.getExpiresAt() - EXPIRY_MARGIN)
+            return token;
+        return renew(openId, token);
+    }
+
+    /**
+     * 获取用户信息，优先使用缓存，过期时使用缓存的网页授权凭证重新获取
+     *
+     * @param openId 用户标识
+     * @return 用户信息，未登录或凭证失效时返回null
+     */
+    public SNSUserInfo getUserInfo(String openId) {
+        SNSUserInfo cached = userInfos.get(openId, System.currentTimeMillis());
+        if (null != cached)
+            return cached;
+        WeixinOauth2Token token = getToken(openId);
+        if (null == token)
+            return null;
+        return loadUserInfo(token);
+    }
+
+    /**
+     * 判断刷新网页授权凭证返回的错误码是否表示refresh_token已失效：40030（不合法的refresh_token）、
+     * 42002（refresh_token超时）
+     *
+     * @param errcode 错误码
+     * @return 是否需要用户重新授权
+     */
+    public static boolean isRefreshTokenError(int errcode) {
+        return 40030 == errcode || 42002 == errcode;
+    }
+
+    /**
+     * 清除用户的凭证和用户信息，例如用户退出登录
+     *
+     * @param openId 用户标识
+     */
+    public void logout(String openId) {
+        tokens.remove(openId);
+        userInfos.remove(openId);
+    }
+
+    private SNSUserInfo loadUserInfo(WeixinOauth2Token token) {
+        SNSUserInfo userInfo = WeixinUtil.getSNSUserInfo(token.getAccessToken(), token.getOpenId());
+        if (null != userInfo)
+            userInfos.put(token.getOpenId(), userInfo, System.currentTimeMillis() + userInfoTtl);
+        return userInfo;
+    }
+
+    // 同一openid的并发续期只请求一次，其余调用等待同一结果
+    private WeixinOauth2Token renew(String openId, WeixinOauth2Token stale) {
+        CompletableFuture<WeixinOauth2Token> future = new CompletableFuture<WeixinOauth2Token>();
+        CompletableFuture<WeixinOauth2Token> existing = renewing.putIfAbsent(openId, future);
+        if (null != existing) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                // 与发起续期的线程抛出相同的异常
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+        try {
+            String requestUrl = WeixinUtil.oauth2_refresh_url.replace("APPID", appId).replace("REFRESH_TOKEN", stale.getRefreshToken());
+            long requestTime = System.currentTimeMillis();
+            JSONObject json = WeixinUtil.httpsRequest(requestUrl, "GET", null);
+            WeixinOauth2Token fresh = WeixinUtil.oauth2TokenResult(json, requestTime);
+            if (null == fresh) {
+                // 只有微信明确拒绝refresh_token时才移除，请求失败、熔断或系统繁忙时保留，下次再续期
+                if (null != json && isRefreshTokenError(json.getIntValue("errcode")))
+                    tokens.remove(openId);
+            } else {
+                // 刷新接口返回的refresh_token可能不变，有效期仍从首次授权起算，这里保守地沿用原条目的过期时间
+                tokens.replace(openId, fresh);
+            }
+            future.complete(fresh);
+            return fresh;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            renewing.remove(openId, future);
+        }
+    }
+
+    /**
+     * 有界LRU缓存，条目超过过期时间后视为不存在
+     */
+    private static final class ExpiringCache<V> {
+
+        private final LinkedHashMap<String, Timed<V>> map;
+
+        ExpiringCache(final int maxEntries) {
+            this.map = new LinkedHashMap<String, Timed<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Timed<V>> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        synchronized V get(String key, long now) {
+            Timed<V> entry = map.get(key);
+            if (null == entry)
+                return null;
+            if (entry.expireAt <= now) {
+                map.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized void put(String key, V value, long expireAt) {
+            map.put(key, new Timed<V>(value, expireAt));
+        }
+
+        // 保留原条目的过期时间
+        synchronized void replace(String key, V value) {
+            Timed<V> entry = map.get(key);
+            if (null != entry)
+                map.put(key, new Timed<V>(value, entry.expireAt));
+        }
+
+        // 已存在且未过期时返回原值，否则写入并返回null
+        synchronized V putIfAbsent(String key, V value, long expireAt, long now) {
+            Timed<V> entry = map.get(key);
+            if (null != entry && entry.expireAt > now)
+                return entry.value;
+            map.put(key, new Timed<V>(value, expireAt));
+            return null;
+        }
+
+        synchronized void remove(String key) {
+            map.remove(key);
+        }
+    }
+
+    // 不能命名为Entry，在LinkedHashMap的匿名子类内会与继承的Map.Entry冲突
+    private static final class Timed<V> {
+        final V value;
+        final long expireAt;
+
+        Timed(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.evan.wechat.token;
+
+import com.evan.wechat.model.AccessToken;
+
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 经由TokenStore获取凭证：存储中有可用的新凭证时直接使用，否则取得租约后由本节点请求微信接口并写回；
+ * 租约被其他节点持有时轮询存储，等待对方写回。
+ * <p>
+ * 调用方多为后台刷新线程或请求线程，等待时间有上限：要替换的凭证尚未过期时最多等待STALE_WAIT，
+ * 超时抛出异常，由AccessTokenManager继续使用旧凭证并稍后重试；没有可用的凭证时最多等待一个租约周期。
+ */
+final class SharedTokenLoader implements Function<AccessToken, AccessToken> {
+
+    // 租约时长，需大于一次请求微信接口的耗时
+    static final long LEASE_MILLIS = 15 * 1000;
+    // 等待其他节点刷新时的轮询间隔
+    private static final long POLL_INTERVAL = 200;
+    // 旧凭证仍可用时等待其他节点刷新的上限，单位：毫秒
+    static final long STALE_WAIT = 2000;
+
+    private final String appId;
+    private final Supplier<AccessToken> fetcher;
+    private final TokenStore store;
+    private final long margin;
+    private final String owner = UUID.randomUUID().toString();
+
+    /**
+     * @param appId   公众号AppId
+     * @param fetcher 请求微信接口获取凭证
+     * @param store   共享存储
+     * @param margin  视为过期的余量，单位：毫秒
+     */
+    SharedTokenLoader(String appId, Supplier<AccessToken> fetcher, TokenStore store, long margin) {
+        this.appId = appId;
+        this.fetcher = fetcher;
+        this.store = store;
+        this.margin = margin;
+    }
+
+    @Override
+    public AccessToken apply(AccessToken stale) {
+        // 租约在首次争抢失败后的一个周期内必然到期，即使持有者已宕机
+        long start = System.currentTimeMillis();
+        long deadline = start + (null != stale && start < stale.getExpiresAt() ? STALE_WAIT : LEASE_MILLIS + POLL_INTERVAL);
+        while (true) {
+            AccessToken shared = store.load(appId);
+            if (usable(shared, stale))
+                return shared;
+            if (store.tryLease(appId, owner, LEASE_MILLIS)) {
+                try {
+                    // 取得租约前其他节点可能刚刚写回
+                    shared = store.load(appId);
+                    if (usable(shared, stale))
+                        return shared;
+                    AccessToken fresh = fetcher.get();
+                    if (null == fresh || null == fresh.getToken())
+                        throw new IllegalStateException("获取access_token失败");
+                    if (0 == fresh.getExpiresAt())
+                        fresh.setExpiresAt(System.currentTimeMillis() + fresh.getExpiresIn() * 1000L);
+                    store.save(appId, fresh);
+                    return fresh;
+                } finally {
+                    store.releaseLease(appId, owner);
+                }
+            }
+            if (System.currentTimeMillis() >= deadline)
+                throw new IllegalStateException("等待其他节点刷新access_token超时");
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待access_token刷新时被中断", e);
+            }
+        }
+    }
+
+    // 未过期，且不是调用方要替换的那个凭证
+    private boolean usable(AccessToken token, AccessToken stale) {
+        if (null == token || null == token.getToken())
+            return false;
+        if (null != stale && token.getToken().equals(stale.getToken()))
+            return false;
+        return System.currentTimeMillis() < token.getExpiresAt() - margin;
+    }
+}
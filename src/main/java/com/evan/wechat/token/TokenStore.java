@@ -0,0 +1,47 @@
+package com.evan.wechat.token;
+
+import com.evan.wechat.model.AccessToken;
+
+/**
+ * 多节点共享的access_token存储
+ * <p>
+ * 同一公众号的多个节点共用一个存储：刷新前先取得租约，只有持有租约的节点请求微信接口并写回，
+ * 其他节点只读取存储中的凭证。租约带有效期，持有者宕机时到期后由其他节点接手。
+ * 实现可以基于Redis、数据库等；{@link MappedFileTokenStore} 基于本机文件，适用于同一台机器上的多个JVM。
+ */
+public interface TokenStore {
+
+    /**
+     * 读取共享的凭证
+     *
+     * @param appId 公众号AppId
+     * @return 凭证，不存在时返回null
+     */
+    AccessToken load(String appId);
+
+    /**
+     * 写入新凭证，需包含expiresAt
+     *
+     * @param appId 公众号AppId
+     * @param token 凭证
+     */
+    void save(String appId, AccessToken token);
+
+    /**
+     * 尝试取得刷新租约，租约未被他人持有或已过期时成功；持有者重复获取时延长租约
+     *
+     * @param appId  公众号AppId
+     * @param owner  节点标识
+     * @param millis 租约时长，单位：毫秒
+     * @return 是否取得租约
+     */
+    boolean tryLease(String appId, String owner, long millis);
+
+    /**
+     * 释放租约，非持有者调用时忽略
+     *
+     * @param appId 公众号AppId
+     * @param owner 节点标识
+     */
+    void releaseLease(String appId, String owner);
+}
@@ -0,0 +1,73 @@
+package com.evan.wechat.utils;
+
+/**
+ * 微信接口分类，每类接口单独限制同时进行的请求数（舱壁），某类接口变慢时不会占满连接池、拖慢其他接口
+ * <p>
+ * 除PAY外的分类都可能请求api.weixin.qq.com，默认上限之和等于该路由默认的100个连接：非关键接口合计60，
+ * 即使全部变慢占满，仍给TOKEN和MESSAGE留出40个连接。调大路由连接数或某类的上限时应保持这一关系。
+ */
+public enum ApiCategory {
+
+    // 获取access_token，关键路径
+    TOKEN(5),
+    // 获取jsapi_ticket
+    TICKET(5),
+    // 客服消息、模板消息，关键路径
+    MESSAGE(35),
+    // 自定义菜单
+    MENU(5),
+    // 用户管理
+    USER(15),
+    // 网页授权
+    OAUTH(20),
+    // 素材上传下载
+    MEDIA(10),
+    // 微信支付
+    PAY(20),
+    // 其他
+    OTHER(5);
+
+    private final int defaultMaxConcurrent;
+
+    ApiCategory(int defaultMaxConcurrent) {
+        this.defaultMaxConcurrent = defaultMaxConcurrent;
+    }
+
+    /**
+     * @return 默认的同时请求数上限
+     */
+    public int getDefaultMaxConcurrent() {
+        return defaultMaxConcurrent;
+    }
+
+    /**
+     * 按请求地址判断接口分类
+     *
+     * @param url 请求地址
+     * @return 接口分类
+     */
+    public static ApiCategory of(String url) {
+        int hostStart = url.indexOf("://");
+        hostStart = hostStart < 0 ? 0 : hostStart + 3;
+        int pathStart = url.indexOf('/', hostStart);
+        String host = pathStart < 0 ? url.substring(hostStart) : url.substring(hostStart, pathStart);
+        String path = pathStart < 0 ? "/" : url.substring(pathStart);
+        if (host.startsWith("api.mch."))
+            return PAY;
+        if (host.startsWith("file.api.") || path.startsWith("/cgi-bin/media/") || path.startsWith("/cgi-bin/material/"))
+            return MEDIA;
+        if (path.startsWith("/cgi-bin/token"))
+            return TOKEN;
+        if (path.startsWith("/cgi-bin/ticket/"))
+            return TICKET;
+        if (path.startsWith("/cgi-bin/message/"))
+            return MESSAGE;
+        if (path.startsWith("/cgi-bin/menu/"))
+            return MENU;
+        if (path.startsWith("/cgi-bin/user/") || path.startsWith("/cgi-bin/model/"))
+            return USER;
+        if (path.startsWith("/sns/"))
+            return OAUTH;
+        return OTHER;
+    }
+}
@@ -0,0 +1,61 @@
+package com.evan.wechat.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 固定大小字节数组的缓冲池
+ * <p>
+ * 池中最多保留capacity个数组，池空时新建，池满时归还的数组直接丢弃，因此不会无限增长。
+ */
+public class BufferPool {
+
+    // 默认缓冲区大小，足以容纳绝大多数回调消息
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, 256);
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    /**
+     * @param bufferSize 每个缓冲区的大小
+     * @param capacity   池中最多保留的缓冲区个数
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("bufferSize and capacity must be positive");
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<byte[]>(capacity);
+    }
+
+    /**
+     * @return 全局共享的默认缓冲池
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 借出一个缓冲区，内容未清零
+     *
+     * @return 长度为bufferSize的字节数组
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return null == buffer ? new byte[bufferSize] : buffer;
+    }
+
+    /**
+     * 归还缓冲区，长度不符的数组（如扩容后的数组）不会入池
+     *
+     * @param buffer 缓冲区
+     */
+    public void release(byte[] buffer) {
+        if (null != buffer && buffer.length == bufferSize)
+            buffers.offer(buffer);
+    }
+}
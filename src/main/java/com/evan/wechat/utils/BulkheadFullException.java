@@ -0,0 +1,25 @@
+package com.evan.wechat.utils;
+
+import java.io.IOException;
+
+/**
+ * 该类接口同时进行的请求数已达上限，等待超时，请求未发出
+ */
+public class BulkheadFullException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ApiCategory category;
+
+    public BulkheadFullException(ApiCategory category) {
+        super("bulkhead full: " + category);
+        this.category = category;
+    }
+
+    /**
+     * @return 接口分类
+     */
+    public ApiCategory getCategory() {
+        return category;
+    }
+}
@@ -0,0 +1,213 @@
+package com.evan.wechat.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个接口的熔断器
+ * <p>
+ * 关闭状态下按10秒的窗口统计失败和慢请求，窗口内请求数达到MIN_CALLS且失败或慢请求的比例达到阈值时打开，
+ * 打开期间请求直接失败；经过openMillis后进入半开状态，放行PROBES个探测请求，全部成功则关闭，任一失败则再次打开。
+ * 每次放行返回带状态代数的许可，只有与当前状态同一代的结果才计入，打开前或上一轮半开时发出的慢请求不会影响当前状态。
+ * 关闭状态下放行只读一次volatile，统计只是原子自增，只有失败或慢请求才计算比例。
+ */
+public final class CircuitBreaker {
+
+    private static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    // 窗口内判断是否打开所需的最少请求数
+    public static final int MIN_CALLS = 20;
+    // 半开状态下的探测请求数
+    public static final int PROBES = 3;
+
+    private static final long WINDOW = 10 * 1000;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final State[] STATES = State.values();
+
+    /**
+     * tryAcquire未放行时的返回值
+     */
+    public static final long REJECTED = -1;
+
+    private final String endpoint;
+    private final int failureRate;
+    private final long slowCallMillis;
+    private final long openMillis;
+
+    // 状态与代数合在一个volatile中读写：代数 << 2 | 状态，每次状态变化代数加1
+    private volatile long status = State.CLOSED.ordinal();
+    private volatile Window window = new Window(System.currentTimeMillis());
+    // 以下由this保护
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    /**
+     * @param endpoint       接口地址，用于日志
+     * @param failureRate    失败或慢请求的比例阈值，单位：百分比
+     * @param slowCallMillis 超过此耗时的请求视为慢请求，单位：毫秒
+     * @param openMillis     打开后多久进入半开状态，单位：毫秒
+     */
+    public CircuitBreaker(String endpoint, int failureRate, long slowCallMillis, long openMillis) {
+        this.endpoint = endpoint;
+        this.failureRate = failureRate;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 判断是否放行请求；放行后必须把返回的许可传给onSuccess、onFailure或onIgnored之一报告结果。
+     * 许可记录了放行时的状态代数，状态变化之后才返回的结果不再计入，半开状态只统计探测请求自己的结果
+     *
+     * @return 许可，未放行时返回REJECTED
+     */
+    public long tryAcquire() {
+        long current = status;
+        if (State.CLOSED == stateOf(current))
+            return current << 1;
+        synchronized (this) {
+            current = status;
+            State state = stateOf(current);
+            if (State.OPEN == state) {
+                if (System.currentTimeMillis() - openedAt < openMillis)
+                    return REJECTED;
+                current = transition(current, State.HALF_OPEN);
+                state = State.HALF_OPEN;
+                probesStarted = 0;
+                probesSucceeded = 0;
+                log.info("接口熔断进入半开状态 {}", endpoint);
+            }
+            if (State.HALF_OPEN == state) {
+                if (probesStarted >= PROBES)
+                    return REJECTED;
+                probesStarted++;
+                return current << 1 | 1;
+            }
+            return current << 1;
+        }
+    }
+
+    /**
+     * 报告请求成功
+     *
+     * @param permit tryAcquire返回的许可
+     * @param millis 耗时，单位：毫秒
+     */
+    public void onSuccess(long permit, long millis) {
+        record(permit, millis < slowCallMillis);
+    }
+
+    /**
+     * 报告请求失败
+     *
+     * @param permit tryAcquire返回的许可
+     */
+    public void onFailure(long permit) {
+        record(permit, false);
+    }
+
+    /**
+     * 报告请求的结果不计入统计，如对冲请求中被中止的一个；探测请求的名额归还给下一个请求
+     *
+     * @param permit tryAcquire返回的许可
+     */
+    public void onIgnored(long permit) {
+        if (!isProbe(permit) || status != permit >>> 1)
+            return;
+        synchronized (this) {
+            if (status == permit >>> 1 && probesStarted > 0)
+                probesStarted--;
+        }
+    }
+
+    private void record(long permit, boolean good) {
+        long current = status;
+        // 放行之后状态已变化，如打开前发出的请求、上一轮半开的探测请求，结果不再计入
+        if (permit < 0 || current != permit >>> 1)
+            return;
+        if (isProbe(permit)) {
+            synchronized (this) {
+                if (status != current)
+                    return;
+                if (!good)
+                    open(current);
+                else if (++probesSucceeded >= PROBES)
+                    close(current);
+            }
+            return;
+        }
+        Window w = window();
+        int calls = w.calls.incrementAndGet();
+        if (good)
+            return;
+        int bad = w.bad.incrementAndGet();
+        if (calls >= MIN_CALLS && bad * 100 >= calls * failureRate) {
+            synchronized (this) {
+                if (status == current)
+                    open(current);
+            }
+        }
+    }
+
+    private Window window() {
+        Window w = window;
+        long now = System.currentTimeMillis();
+        if (now - w.start < WINDOW)
+            return w;
+        synchronized (this) {
+            if (now - window.start >= WINDOW)
+                window = new Window(now);
+            return window;
+        }
+    }
+
+    private static State stateOf(long status) {
+        return STATES[(int) (status & 3)];
+    }
+
+    private static boolean isProbe(long permit) {
+        return 1 == (permit & 1);
+    }
+
+    // 在this上调用
+    private long transition(long current, State state) {
+        long next = ((current >>> 2) + 1) << 2 | state.ordinal();
+        status = next;
+        return next;
+    }
+
+    private void open(long current) {
+        openedAt = System.currentTimeMillis();
+        transition(current, State.OPEN);
+        log.warn("接口失败或慢请求过多，熔断{}毫秒 {}", openMillis, endpoint);
+    }
+
+    private void close(long current) {
+        window = new Window(System.currentTimeMillis());
+        transition(current, State.CLOSED);
+        log.info("接口恢复，熔断关闭 {}", endpoint);
+    }
+
+    /**
+     * @return 当前状态
+     */
+    public State getState() {
+        return stateOf(status);
+    }
+
+    private static final class Window {
+        final long start;
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger bad = new AtomicInteger();
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+}
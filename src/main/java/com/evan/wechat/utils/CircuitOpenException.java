@@ -0,0 +1,25 @@
+package com.evan.wechat.utils;
+
+import java.io.IOException;
+
+/**
+ * 接口熔断中，请求未发出
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String endpoint;
+
+    public CircuitOpenException(String endpoint) {
+        super("circuit open: " + endpoint);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return 熔断的接口地址（不含参数）
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,144 @@
+package com.evan.wechat.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * 按ASCII取值查找枚举常量的完美哈希表
+ * <p>
+ * 构造时为所有取值寻找一个无冲突的哈希种子，查找时只计算一次哈希并逐字节核对候选项，
+ * 可以直接在原始字节上进行，不创建字符串。
+ *
+ * @param <E> 枚举类型
+ */
+public final class EnumLookup<E extends Enum<E>> {
+
+    private final boolean ignoreCase;
+    private final int seed;
+    private final int mask;
+    private final Object[] constants;
+    private final byte[][] keys;
+
+    /**
+     * @param values     参与查找的枚举常量
+     * @param key        常量对应的取值，返回null的常量不参与查找
+     * @param ignoreCase 是否忽略大小写
+     */
+    public EnumLookup(E[] values, Function<E, String> key, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        int count = 0;
+        byte[][] all = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            String k = key.apply(values[i]);
+            if (null != k) {
+                all[i] = k.getBytes(StandardCharsets.US_ASCII);
+                count++;
+            }
+        }
+        int size = Integer.highestOneBit(Math.max(count, 1) * 4 - 1) << 1;
+        int found = 0;
+        int[] slots = new int[size];
+        search:
+        while (true) {
+            for (int s = 31; s < 31 + 4096; s += 2) {
+                if (tryPlace(all, s, slots)) {
+                    found = s;
+                    break search;
+                }
+            }
+            size <<= 1;
+            slots = new int[size];
+        }
+        this.seed = found;
+        this.mask = size - 1;
+        this.constants = new Object[size];
+        this.keys = new byte[size][];
+        for (int slot = 0; slot < size; slot++) {
+            if (slots[slot] >= 0) {
+                constants[slot] = values[slots[slot]];
+                keys[slot] = all[slots[slot]];
+            }
+        }
+    }
+
+    // 尝试用给定种子把所有取值放入哈希表，有冲突时返回false
+    private boolean tryPlace(byte[][] all, int seed, int[] slots) {
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < all.length; i++) {
+            if (null == all[i])
+                continue;
+            int slot = hash(all[i], 0, all[i].length, seed, ignoreCase) & (slots.length - 1);
+            if (slots[slot] >= 0)
+                return false;
+            slots[slot] = i;
+        }
+        return true;
+    }
+
+    /**
+     * 在字节区间上查找
+     *
+     * @param data         字节
+     * @param start        起始位置
+     * @param end          结束位置（不含）
+     * @param defaultValue 未找到时的返回值
+     * @return 枚举常量
+     */
+    @SuppressWarnings("unchecked")
+    public E find(byte[] data, int start, int end, E defaultValue) {
+        int slot = hash(data, start, end, seed, ignoreCase) & mask;
+        byte[] key = keys[slot];
+        if (null == key || key.length != end - start)
+            return defaultValue;
+        for (int i = 0; i < key.length; i++) {
+            if (fold(key[i], ignoreCase) != fold(data[start + i], ignoreCase))
+                return defaultValue;
+        }
+        return (E) constants[slot];
+    }
+
+    /**
+     * 按字符串查找
+     *
+     * @param value        取值
+     * @param defaultValue 未找到时的返回值
+     * @return 枚举常量
+     */
+    @SuppressWarnings("unchecked")
+    public E find(String value, E defaultValue) {
+        if (null == value)
+            return defaultValue;
+        int h = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80)
+                return defaultValue;
+            h = h * seed + fold((byte) c, ignoreCase);
+        }
+        int slot = spread(h) & mask;
+        byte[] key = keys[slot];
+        if (null == key || key.length != value.length())
+            return defaultValue;
+        for (int i = 0; i < key.length; i++) {
+            if (fold(key[i], ignoreCase) != fold((byte) value.charAt(i), ignoreCase))
+                return defaultValue;
+        }
+        return (E) constants[slot];
+    }
+
+    private static int hash(byte[] data, int start, int end, int seed, boolean ignoreCase) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = h * seed + fold(data[i], ignoreCase);
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int fold(byte b, boolean ignoreCase) {
+        return ignoreCase && b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
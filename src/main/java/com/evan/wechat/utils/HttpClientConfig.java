@@ -0,0 +1,254 @@
+package com.evan.wechat.utils;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HttpRequestUtil连接池的配置
+ * <p>
+ * 连接池按路由（协议+主机+端口）限制连接数，微信的各个接口域名分别配置上限，其余主机使用默认上限。
+ * 后台线程定期关闭过期和空闲超时的连接；连接空闲超过validateAfterInactivity后再次使用前先检查是否已被对端关闭。
+ * GET请求的超时按接口最近的耗时自适应，在minTimeout和timeout之间取p99的3倍，POST和素材接口固定使用timeout；启用对冲时，幂等的GET请求超过p95仍未返回会再发一次。
+ * 每类接口（ApiCategory）单独限制同时进行的请求数，每个接口有独立的熔断器，某个接口故障时其余接口不受影响。
+ * 各类上限之和不超过路由的连接数时，非关键接口变慢不会占用TOKEN、MESSAGE的连接；调大路由连接数时同时调大各类上限：
+ * <pre>
+ * HttpRequestUtil.configure(new HttpClientConfig().maxTotal(400).maxPerRoute("api.weixin.qq.com", 200)
+ *         .bulkhead(ApiCategory.MESSAGE, 70).bulkhead(ApiCategory.USER, 40).bulkhead(ApiCategory.OAUTH, 45));
+ * </pre>
+ */
+public class HttpClientConfig {
+
+    // 连接池总连接数
+    public static final int DEFAULT_MAX_TOTAL = 200;
+    // 未单独配置的路由的连接数
+    public static final int DEFAULT_MAX_PER_ROUTE = 40;
+    // 连接空闲多久后使用前需要检查，单位：毫秒
+    public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+    // 空闲连接的最长保留时间，单位：毫秒
+    public static final long DEFAULT_MAX_IDLE_TIME = 30 * 1000;
+    // 连接、读取和从连接池获取连接的超时上限，单位：毫秒
+    public static final int DEFAULT_TIMEOUT = 60 * 1000;
+    // 自适应超时的下限，单位：毫秒
+    public static final int DEFAULT_MIN_TIMEOUT = 1000;
+    // 舱壁已满时的等待时间，单位：毫秒
+    public static final long DEFAULT_BULKHEAD_WAIT = 500;
+    // 熔断的失败或慢请求比例，单位：百分比
+    public static final int DEFAULT_FAILURE_RATE = 50;
+    // 慢请求的耗时，单位：毫秒
+    public static final long DEFAULT_SLOW_CALL = 10 * 1000;
+    // 熔断持续时间，单位：毫秒
+    public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+
+    private int maxTotal = DEFAULT_MAX_TOTAL;
+    private int defaultMaxPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private int validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+    private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+    private int timeout = DEFAULT_TIMEOUT;
+    private int minTimeout = DEFAULT_MIN_TIMEOUT;
+    private boolean hedging = false;
+    private final Map<ApiCategory, Integer> bulkheads = new EnumMap<ApiCategory, Integer>(ApiCategory.class);
+    private long bulkheadWait = DEFAULT_BULKHEAD_WAIT;
+    private int failureRate = DEFAULT_FAILURE_RATE;
+    private long slowCall = DEFAULT_SLOW_CALL;
+    private long openDuration = DEFAULT_OPEN_DURATION;
+    private final Map<HttpRoute, Integer> maxPerRoute = new LinkedHashMap<HttpRoute, Integer>();
+
+    /**
+     * 默认配置：api.weixin.qq.com 100、api.mch.weixin.qq.com 40、file.api.weixin.qq.com 20
+     */
+    public HttpClientConfig() {
+        maxPerRoute("api.weixin.qq.com", 100);
+        maxPerRoute("api.mch.weixin.qq.com", 40);
+        maxPerRoute("file.api.weixin.qq.com", 20);
+        for (ApiCategory category : ApiCategory.values())
+            bulkheads.put(category, category.getDefaultMaxConcurrent());
+    }
+
+    /**
+     * 连接池总连接数
+     */
+    public HttpClientConfig maxTotal(int maxTotal) {
+        if (maxTotal <= 0)
+            throw new IllegalArgumentException("maxTotal must be positive");
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * 未单独配置的路由的连接数
+     */
+    public HttpClientConfig defaultMaxPerRoute(int defaultMaxPerRoute) {
+        if (defaultMaxPerRoute <= 0)
+            throw new IllegalArgumentException("defaultMaxPerRoute must be positive");
+        this.defaultMaxPerRoute = defaultMaxPerRoute;
+        return this;
+    }
+
+    /**
+     * 单独配置https主机（端口443）的连接数
+     *
+     * @param host 主机名
+     * @param max  连接数
+     */
+    public HttpClientConfig maxPerRoute(String host, int max) {
+        return maxPerRoute("https", host, 443, max);
+    }
+
+    /**
+     * 单独配置一个路由的连接数
+     *
+     * @param scheme http或https
+     * @param host   主机名
+     * @param port   端口
+     * @param max    连接数
+     */
+    public HttpClientConfig maxPerRoute(String scheme, String host, int port, int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("max must be positive");
+        maxPerRoute.put(route(scheme, host, port), max);
+        return this;
+    }
+
+    /**
+     * 连接空闲多久后使用前需要检查是否仍然可用，单位：毫秒；不大于0时不检查
+     */
+    public HttpClientConfig validateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+        return this;
+    }
+
+    /**
+     * 空闲连接的最长保留时间，后台线程按此间隔关闭空闲超时和过期的连接，单位：毫秒
+     */
+    public HttpClientConfig maxIdleTime(long maxIdleTime) {
+        if (maxIdleTime <= 0)
+            throw new IllegalArgumentException("maxIdleTime must be positive");
+        this.maxIdleTime = maxIdleTime;
+        return this;
+    }
+
+    /**
+     * 连接、读取和从连接池获取连接的超时上限，接口样本不足时以及POST、素材接口使用，单位：毫秒
+     */
+    public HttpClientConfig timeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * GET请求自适应超时的下限，单位：毫秒；与timeout相等时即固定超时
+     */
+    public HttpClientConfig minTimeout(int minTimeout) {
+        this.minTimeout = minTimeout;
+        return this;
+    }
+
+    /**
+     * 是否对幂等的GET请求（如获取用户信息）发出对冲请求
+     */
+    public HttpClientConfig hedging(boolean hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    /**
+     * 一类接口同时进行的请求数上限，同一路由上各类的上限之和不应超过该路由的连接数
+     *
+     * @param category      接口分类
+     * @param maxConcurrent 上限
+     */
+    public HttpClientConfig bulkhead(ApiCategory category, int maxConcurrent) {
+        if (maxConcurrent <= 0)
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        bulkheads.put(category, maxConcurrent);
+        return this;
+    }
+
+    /**
+     * 舱壁已满时等待的时间，超时抛出BulkheadFullException，单位：毫秒
+     */
+    public HttpClientConfig bulkheadWait(long bulkheadWait) {
+        this.bulkheadWait = bulkheadWait;
+        return this;
+    }
+
+    /**
+     * 熔断条件
+     *
+     * @param failureRate  10秒内失败或慢请求的比例达到此值时熔断，单位：百分比
+     * @param slowCall     超过此耗时的请求视为慢请求，单位：毫秒
+     * @param openDuration 熔断持续时间，之后放行探测请求，单位：毫秒
+     */
+    public HttpClientConfig circuitBreaker(int failureRate, long slowCall, long openDuration) {
+        if (failureRate <= 0 || failureRate > 100)
+            throw new IllegalArgumentException("failureRate must be in (0, 100]");
+        this.failureRate = failureRate;
+        this.slowCall = slowCall;
+        this.openDuration = openDuration;
+        return this;
+    }
+
+    /**
+     * 与连接池内部使用的路由一致：https路由为secure，端口为实际端口
+     */
+    static HttpRoute route(String scheme, String host, int port) {
+        return new HttpRoute(new HttpHost(host, port, scheme), null, "https".equalsIgnoreCase(scheme));
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getDefaultMaxPerRoute() {
+        return defaultMaxPerRoute;
+    }
+
+    public Map<HttpRoute, Integer> getMaxPerRoute() {
+        return Collections.unmodifiableMap(maxPerRoute);
+    }
+
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public int getMinTimeout() {
+        return minTimeout;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    public Map<ApiCategory, Integer> getBulkheads() {
+        return Collections.unmodifiableMap(bulkheads);
+    }
+
+    public long getBulkheadWait() {
+        return bulkheadWait;
+    }
+
+    public int getFailureRate() {
+        return failureRate;
+    }
+
+    public long getSlowCall() {
+        return slowCall;
+    }
+
+    public long getOpenDuration() {
+        return openDuration;
+    }
+}
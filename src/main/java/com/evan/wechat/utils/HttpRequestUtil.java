@@ -2,13 +2,10 @@ package com.evan.wechat.utils;
 
 
 import com.alibaba.fastjson.JSON;
-import org.apache.commons.httpclient.ConnectTimeoutException;
-import org.apache.commons.httpclient.NoHttpResponseException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.ResponseHandler;
@@ -19,6 +16,7 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.HttpHostConnectException;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
@@ -29,61 +27,214 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class HttpRequestUtil {
 
     private static Logger logger = LoggerFactory.getLogger(HttpRequestUtil.class);
 
-    private static final int TIMEOUT = 60 * 1000;
+    private static volatile CloseableHttpClient httpClient = null;
 
-    private static CloseableHttpClient httpClient = null;
+    private static PoolingHttpClientConnectionManager connectionManager = null;
+
+    private static volatile int timeout = HttpClientConfig.DEFAULT_TIMEOUT;
+
+    private static volatile int minTimeout = HttpClientConfig.DEFAULT_MIN_TIMEOUT;
+
+    private static volatile boolean hedging = false;
 
     private final static Object syncLock = new Object();
 
-    // 设置超时
-    private static void config(HttpRequestBase httpRequestBase) {
+    // 自适应超时取最近耗时p99的倍数
+    private static final int TIMEOUT_MULTIPLIER = 3;
+
+    // 同时进行的对冲请求上限
+    private static final int MAX_HEDGE_THREADS = 16;
+
+    // 统计耗时的接口数上限，超出后归入同一个统计
+    private static final int MAX_TRACKERS = 1024;
+
+    private static final ConcurrentMap<String, LatencyTracker> trackers = new ConcurrentHashMap<String, LatencyTracker>();
+
+    private static final LatencyTracker otherTracker = new LatencyTracker();
+
+    private static volatile HttpClientConfig clientConfig = new HttpClientConfig();
+
+    private static volatile Map<ApiCategory, Semaphore> bulkheads = Collections.emptyMap();
+
+    private static final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    // 到期发出对冲请求的定时器
+    private static final ScheduledThreadPoolExecutor hedgeTimer = new ScheduledThreadPoolExecutor(1, daemonThreads("wechat-hedge-timer-"));
+
+    // 执行对冲请求，对冲不超过请求数的10%，线程用完时放弃对冲而不排队
+    private static final ThreadPoolExecutor hedgeExecutor = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), daemonThreads("wechat-hedge-"));
+
+    static {
+        // 首个请求先返回时取消的定时任务立即移出队列
+        hedgeTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    // 设置超时：最近耗时p99的3倍，限制在[minTimeout, timeout]内；样本不足时使用timeout。
+    // 带请求体的请求（POST、素材上传）超时后无法确认是否已生效，耗时也随请求体大小变化，固定使用timeout
+    private static void config(HttpRequestBase httpRequestBase, ApiCategory category, LatencyTracker tracker) {
+        int requestTimeout = timeout;
+        boolean adaptive = !(httpRequestBase instanceof HttpEntityEnclosingRequest) && ApiCategory.MEDIA != category;
+        long p99 = adaptive ? tracker.percentile(0.99) : -1;
+        if (p99 >= 0)
+            requestTimeout = (int) Math.max(minTimeout, Math.min(timeout, p99 * TIMEOUT_MULTIPLIER));
         RequestConfig requestConfig = RequestConfig.custom()
-                .setConnectionRequestTimeout(TIMEOUT)
-                .setConnectTimeout(TIMEOUT)
-                .setSocketTimeout(TIMEOUT)
+                .setConnectionRequestTimeout(requestTimeout)
+                .setConnectTimeout(requestTimeout)
+                .setSocketTimeout(requestTimeout)
                 .build();
         httpRequestBase.setConfig(requestConfig);
     }
 
+    // 以去掉参数的地址区分接口
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static LatencyTracker tracker(String url) {
+        String endpoint = StringUtils.substringBefore(url, "?");
+        LatencyTracker tracker = trackers.get(endpoint);
+        if (tracker != null)
+            return tracker;
+        if (trackers.size() >= MAX_TRACKERS)
+            return otherTracker;
+        return trackers.computeIfAbsent(endpoint, k -> new LatencyTracker());
+    }
+
+    // 以去掉参数的地址区分接口，超出上限的接口不熔断
+    private static CircuitBreaker breaker(String endpoint) {
+        CircuitBreaker breaker = breakers.get(endpoint);
+        if (breaker != null || breakers.size() >= MAX_TRACKERS)
+            return breaker;
+        HttpClientConfig config = clientConfig;
+        return breakers.computeIfAbsent(endpoint, k -> new CircuitBreaker(k, config.getFailureRate(), config.getSlowCall(), config.getOpenDuration()));
+    }
+
     /**
-     * 获取httpClient
+     * 各接口的熔断器，可用于导出熔断状态
+     *
+     * @return 以去掉参数的请求地址为键的熔断器
+     */
+    public static Map<String, CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(breakers);
+    }
+
+    /**
+     * 各类接口正在进行的请求数
+     *
+     * @return 以接口分类为键的请求数
+     */
+    public static Map<ApiCategory, Integer> getBulkheadUsage() {
+        Map<ApiCategory, Integer> usage = new EnumMap<ApiCategory, Integer>(ApiCategory.class);
+        Map<ApiCategory, Integer> limits = clientConfig.getBulkheads();
+        for (Map.Entry<ApiCategory, Semaphore> entry : bulkheads.entrySet())
+            usage.put(entry.getKey(), limits.get(entry.getKey()) - entry.getValue().availablePermits());
+        return usage;
+    }
+
+    /**
+     * 各接口的耗时统计，可用于导出监控指标
+     *
+     * @return 以去掉参数的请求地址为键的耗时统计
+     */
+    public static Map<String, LatencyTracker> getLatencyTrackers() {
+        return Collections.unmodifiableMap(trackers);
+    }
+
+    /**
+     * 使用指定配置创建连接池，需在首次请求前调用；未调用时首次请求使用默认配置
+     *
+     * @param config 连接池配置
+     * @throws IllegalStateException 连接池已创建
+     */
+    public static void configure(HttpClientConfig config) {
+        synchronized (syncLock) {
+            if (httpClient != null)
+                throw new IllegalStateException("HttpClient already initialized");
+            httpClient = createHttpClient(config);
+        }
+    }
+
+    /**
+     * 获取httpClient，所有主机共用一个连接池，各路由的连接数上限见HttpClientConfig
      *
      * @param url
      * @return
      */
     public static CloseableHttpClient getHttpClient(String url) {
-        String hostname = url.split("/")[2];
-        int port = 80;
-        if (hostname.contains(":")) {
-            String[] arr = hostname.split(":");
-            hostname = arr[0];
-            port = Integer.parseInt(arr[1]);
-        }
-        if (httpClient == null) {
+        CloseableHttpClient client = httpClient;
+        if (client == null) {
             synchronized (syncLock) {
                 if (httpClient == null) {
-                    httpClient = createHttpClient(200, 40, 100, hostname, port);
+                    httpClient = createHttpClient(new HttpClientConfig());
                 }
+                client = httpClient;
             }
         }
-        return httpClient;
+        return client;
     }
 
-    private static CloseableHttpClient createHttpClient(int maxTotal, int maxPerRoute, int maxRoute, String hostname, int port) {
+    /**
+     * 连接池统计，可用于导出监控指标
+     *
+     * @return 以路由（如 https://api.weixin.qq.com:443）为键的统计：leased 使用中、pending 等待连接、
+     * available 空闲、max 上限；键 total 为整个连接池；连接池未创建时为空
+     */
+    public static Map<String, PoolStats> getPoolStats() {
+        PoolingHttpClientConnectionManager cm;
+        synchronized (syncLock) {
+            cm = connectionManager;
+        }
+        Map<String, PoolStats> stats = new LinkedHashMap<String, PoolStats>();
+        if (cm == null)
+            return stats;
+        stats.put("total", cm.getTotalStats());
+        for (HttpRoute route : cm.getRoutes())
+            stats.put(route.getTargetHost().toURI(), cm.getStats(route));
+        return stats;
+    }
+
+    private static CloseableHttpClient createHttpClient(HttpClientConfig config) {
         ConnectionSocketFactory plainsf = PlainConnectionSocketFactory
                 .getSocketFactory();
         LayeredConnectionSocketFactory sslsf = SSLConnectionSocketFactory
@@ -98,21 +249,25 @@ public class HttpRequestUtil {
                 registry);
 
         // 将最大连接数增加
-        cm.setMaxTotal(maxTotal);
+        cm.setMaxTotal(config.getMaxTotal());
         // 将每个路由基础的连接增加
-        cm.setDefaultMaxPerRoute(maxPerRoute);
-
-        // 将目标主机的最大连接数增加
-        HttpHost httpHost = new HttpHost(hostname, port);
-        cm.setMaxPerRoute(new HttpRoute(httpHost), maxRoute);
+        cm.setDefaultMaxPerRoute(config.getDefaultMaxPerRoute());
+        // 微信各接口域名的最大连接数
+        for (Map.Entry<HttpRoute, Integer> entry : config.getMaxPerRoute().entrySet())
+            cm.setMaxPerRoute(entry.getKey(), entry.getValue());
+        // 空闲一段时间的连接可能已被服务端关闭，使用前检查
+        cm.setValidateAfterInactivity(config.getValidateAfterInactivity());
 
         // 请求重试处理
         HttpRequestRetryHandler httpRequestRetryHandler = (exception, executionCount, context) -> {
             if (executionCount >= 5) {// 如果已经重试了5次，就放弃
                 return false;
             }
-            if (exception instanceof NoHttpResponseException) {// 如果服务器丢掉了连接，那么就重试
-                return true;
+            HttpClientContext clientContext = HttpClientContext.adapt(context);
+            // 带请求体的请求（如发送客服消息、创建菜单）不是幂等的，服务端可能已处理完才断开，重发会产生重复调用
+            boolean idempotent = !(clientContext.getRequest() instanceof HttpEntityEnclosingRequest);
+            if (exception instanceof NoHttpResponseException) {// 如果服务器丢掉了连接，幂等请求可以重试
+                return idempotent;
             }
             if (exception instanceof SSLHandshakeException) {// 不要重试SSL握手异常
                 return false;
@@ -123,30 +278,197 @@ public class HttpRequestUtil {
             if (exception instanceof UnknownHostException) {// 目标服务器不可达
                 return false;
             }
-            if (exception instanceof ConnectTimeoutException) {// 连接被拒绝
+            if (exception instanceof ConnectException) {// 连接被拒绝
                 return false;
             }
             if (exception instanceof SSLException) {// SSL握手异常
                 return false;
             }
 
-            HttpClientContext clientContext = HttpClientContext.adapt(context);
-            HttpRequest request = clientContext.getRequest();
             // 如果请求是幂等的，就再次尝试
-            if (!(request instanceof HttpEntityEnclosingRequest)) {
-                return true;
-            }
-            return false;
+            return idempotent;
         };
 
         CloseableHttpClient httpClient = HttpClients.custom()
                 .setConnectionManager(cm)
                 .setRetryHandler(httpRequestRetryHandler)
+                // 后台线程定期关闭过期和空闲超时的连接
+                .evictExpiredConnections()
+                .evictIdleConnections(config.getMaxIdleTime(), TimeUnit.MILLISECONDS)
                 .build();
 
+        Map<ApiCategory, Semaphore> semaphores = new EnumMap<ApiCategory, Semaphore>(ApiCategory.class);
+        for (Map.Entry<ApiCategory, Integer> entry : config.getBulkheads().entrySet())
+            semaphores.put(entry.getKey(), new Semaphore(entry.getValue()));
+        bulkheads = semaphores;
+        clientConfig = config;
+        connectionManager = cm;
+        timeout = config.getTimeout();
+        minTimeout = Math.min(config.getMinTimeout(), config.getTimeout());
+        hedging = config.isHedging();
         return httpClient;
     }
 
+    /**
+     * 使用共享的连接池发起请求，连接保持长连接并复用TLS会话
+     *
+     * @param url    请求地址
+     * @param method GET或POST
+     * @param body   请求体，可为null
+     * @return 响应内容
+     * @throws IOException 连接失败、超时或响应状态码不是2xx
+     */
+    public static String execute(String url, String method, String body) throws IOException {
+        HttpRequestBase request;
+        if ("POST".equalsIgnoreCase(method)) {
+            HttpPost post = new HttpPost(url);
+            if (null != body) {
+                StringEntity entity = new StringEntity(body, "UTF-8");
+                entity.setContentType("application/json");
+                post.setEntity(entity);
+            }
+            request = post;
+        } else {
+            request = new HttpGet(url);
+        }
+        return send(request);
+    }
+
+    /**
+     * 发起幂等的GET请求。启用对冲时，超过该接口最近耗时的p95仍未返回则再发一次，取先返回的结果，
+     * 另一个请求随即中止；对冲请求数不超过请求数的10%
+     *
+     * @param url 请求地址
+     * @return 响应内容
+     * @throws IOException 请求均失败
+     */
+    public static String executeHedged(String url) throws IOException {
+        LatencyTracker tracker = tracker(url);
+        long delay = hedging ? tracker.percentile(0.95) : -1;
+        if (delay < 0)
+            return execute(url, "GET", null);
+        HttpGet primary = new HttpGet(url);
+        HttpGet secondary = new HttpGet(url);
+        CompletableFuture<String> winner = new CompletableFuture<String>();
+        // 未结束的请求数及最近一次失败，全部失败时以该异常结束
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        // 首个请求在调用线程上执行，只有对冲请求交给对冲线程
+        ScheduledFuture<?> timer = hedgeTimer.schedule(() -> {
+            if (winner.isDone() || !pending.compareAndSet(1, 2))
+                return;
+            if (!tracker.tryHedge()) {
+                settle(winner, pending, failure);
+                return;
+            }
+            try {
+                hedgeExecutor.execute(() -> attempt(secondary, primary, winner, pending, failure));
+            } catch (RejectedExecutionException e) {
+                // 对冲线程已满，放弃本次对冲
+                settle(winner, pending, failure);
+            }
+        }, Math.max(delay, 1), TimeUnit.MILLISECONDS);
+        try {
+            attempt(primary, secondary, winner, pending, failure);
+            return await(winner);
+        } finally {
+            timer.cancel(false);
+            // 中止未完成的请求，已完成的请求连接已归还，中止不会影响
+            primary.abort();
+            secondary.abort();
+        }
+    }
+
+    // 执行一次请求，先成功的一方立即中止另一个请求
+    private static void attempt(HttpRequestBase request, HttpRequestBase other, CompletableFuture<String> winner,
+                                AtomicInteger pending, AtomicReference<Throwable> failure) {
+        try {
+            if (winner.complete(send(request)))
+                other.abort();
+        } catch (IOException | RuntimeException e) {
+            failure.set(e);
+            settle(winner, pending, failure);
+        }
+    }
+
+    // 一个请求失败或放弃，已没有未结束的请求时以最近的失败结束
+    private static void settle(CompletableFuture<String> winner, AtomicInteger pending, AtomicReference<Throwable> failure) {
+        if (0 == pending.decrementAndGet())
+            winner.completeExceptionally(failure.get());
+    }
+
+    private static String await(CompletableFuture<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // 执行请求并记录耗时；超时和被中止的请求以已耗费的时间记录，接口变慢时超时随之放宽。
+    // 先经过接口的熔断器，熔断时不必等待舱壁；再占用所属分类的舱壁
+    private static String send(HttpRequestBase request) throws IOException {
+        String url = request.getURI().toString();
+        CloseableHttpClient client = getHttpClient(url);
+        ApiCategory category = ApiCategory.of(url);
+        String endpoint = StringUtils.substringBefore(url, "?");
+        CircuitBreaker breaker = breaker(endpoint);
+        long permit = null == breaker ? CircuitBreaker.REJECTED : breaker.tryAcquire();
+        if (breaker != null && CircuitBreaker.REJECTED == permit)
+            throw new CircuitOpenException(endpoint);
+        Semaphore bulkhead = bulkheads.get(category);
+        try {
+            if (!bulkhead.tryAcquire(clientConfig.getBulkheadWait(), TimeUnit.MILLISECONDS)) {
+                // 请求没有发出，归还熔断器的许可（半开时的探测名额）
+                if (breaker != null)
+                    breaker.onIgnored(permit);
+                throw new BulkheadFullException(category);
+            }
+        } catch (InterruptedException e) {
+            if (breaker != null)
+                breaker.onIgnored(permit);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        }
+        try {
+            LatencyTracker tracker = tracker(url);
+            config(request, category, tracker);
+            long start = System.currentTimeMillis();
+            try {
+                String body = client.execute(request, getStringResponseHandler());
+                long elapsed = System.currentTimeMillis() - start;
+                tracker.record(elapsed);
+                if (breaker != null)
+                    breaker.onSuccess(permit, elapsed);
+                return body;
+            } catch (IOException e) {
+                if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException || request.isAborted())
+                    tracker.record(System.currentTimeMillis() - start);
+                if (breaker != null) {
+                    if (request.isAborted())
+                        breaker.onIgnored(permit);
+                    else
+                        breaker.onFailure(permit);
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                if (breaker != null)
+                    breaker.onFailure(permit);
+                throw e;
+            }
+        } finally {
+            bulkhead.release();
+        }
+    }
+
     public static <T> T doPost(String url, String json, Class<T> clz) throws Exception {
         String result = doPost(url, json);
         return JSON.parseObject(result, clz);
@@ -154,9 +476,7 @@ public class HttpRequestUtil {
 
     public static String doPost(String url, String json) throws Exception {
         try {
-            CloseableHttpClient client = getHttpClient(url);
             HttpPost post = new HttpPost(url);
-            config(post);
             logger.info("====> Executing request: " + post.getRequestLine());
             if (!StringUtils.isEmpty(json)) {
                 StringEntity s = new StringEntity(json, "UTF-8");
@@ -164,7 +484,7 @@ public class HttpRequestUtil {
                 s.setContentType("application/json");
                 post.setEntity(s);
             }
-            String responseBody = client.execute(post, getStringResponseHandler());
+            String responseBody = send(post);
             logger.info("====> Getting response from request " + post.getRequestLine() + " The responseBody: " + responseBody);
             return responseBody;
         } catch (Exception e) {
@@ -195,11 +515,9 @@ public class HttpRequestUtil {
 
     public static String doGet(String url) throws Exception {
         try {
-            CloseableHttpClient client = getHttpClient(url);
             HttpGet httpget = new HttpGet(url);
-            config(httpget);
             logger.info("====> Executing request: " + httpget.getRequestLine());
-            String responseBody = client.execute(httpget, getStringResponseHandler());
+            String responseBody = send(httpget);
             logger.info("====> Getting response from request " + httpget.getRequestLine() + " The responseBody: " + responseBody);
             return responseBody;
         } catch (Exception e) {
@@ -0,0 +1,313 @@
+package com.evan.wechat.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * 关键词索引（Aho-Corasick自动机）
+ * <p>
+ * 所有关键词编译进同一个自动机，对消息内容只需从头到尾扫描一遍即可找出全部命中的关键词，
+ * 耗时与关键词数量无关。按字符（char）匹配，中文无需分词。命中多个关键词时取priority最大的，
+ * 相同时取先加入的。索引构建后不可变，可在多线程间共享；关键词变更时重新构建一份并整体替换，
+ * 构建可以放到后台线程（见 {@link #buildAsync(List, boolean, Executor)}）。
+ *
+ * @param <T> 关键词关联的数据，如回复内容、路由规则
+ */
+public final class KeywordIndex<T> {
+
+    /**
+     * 匹配方式
+     */
+    public enum MatchMode {
+        // 内容与关键词完全相同
+        EXACT,
+        // 内容以关键词开头
+        PREFIX,
+        // 内容包含关键词
+        CONTAINS
+    }
+
+    /**
+     * 关键词
+     *
+     * @param <T> 关联的数据
+     */
+    public static final class Keyword<T> {
+        private final String text;
+        private final MatchMode mode;
+        private final int priority;
+        private final T value;
+
+        public Keyword(String text, MatchMode mode, int priority, T value) {
+            if (null == text || text.isEmpty())
+                throw new IllegalArgumentException("keyword must not be empty");
+            this.text = text;
+            this.mode = null == mode ? MatchMode.CONTAINS : mode;
+            this.priority = priority;
+            this.value = value;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public MatchMode getMode() {
+            return mode;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * 不借助索引单独判断内容是否命中该关键词
+         *
+         * @param content    内容
+         * @param ignoreCase 是否忽略大小写
+         * @return 是否命中
+         */
+        public boolean matches(String content, boolean ignoreCase) {
+            switch (mode) {
+                case EXACT:
+                    return ignoreCase ? content.equalsIgnoreCase(text) : content.equals(text);
+                case PREFIX:
+                    return content.regionMatches(ignoreCase, 0, text, 0, text.length());
+                default:
+                    if (!ignoreCase)
+                        return content.contains(text);
+                    for (int i = 0; i + text.length() <= content.length(); i++) {
+                        if (content.regionMatches(true, i, text, 0, text.length()))
+                            return true;
+                    }
+                    return false;
+            }
+        }
+    }
+
+    private final boolean ignoreCase;
+    private final List<Keyword<T>> keywords;
+    // 节点i的出边为labels/targets中[edgeStart[i], edgeStart[i + 1])区间，按字符排序
+    private final int[] edgeStart;
+    private final char[] labels;
+    private final int[] targets;
+    // 失配指针
+    private final int[] fail;
+    // 以该节点结尾的关键词序号
+    private final int[][] outputs;
+    // 沿失配链第一个有输出的节点，没有时为-1
+    private final int[] outputLink;
+
+    private KeywordIndex(List<Keyword<T>> keywords, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.keywords = new ArrayList<Keyword<T>>(keywords);
+
+        // 构建字典树
+        List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        children.add(new TreeMap<Character, Integer>());
+        ends.add(null);
+        for (int id = 0; id < this.keywords.size(); id++) {
+            String text = this.keywords.get(id).getText();
+            int node = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = fold(text.charAt(i));
+                Integer next = children.get(node).get(c);
+                if (null == next) {
+                    next = children.size();
+                    children.get(node).put(c, next);
+                    children.add(new TreeMap<Character, Integer>());
+                    ends.add(null);
+                }
+                node = next;
+            }
+            if (null == ends.get(node))
+                ends.set(node, new ArrayList<Integer>(1));
+            ends.get(node).add(id);
+        }
+
+        // 压缩为数组
+        int nodeCount = children.size();
+        edgeStart = new int[nodeCount + 1];
+        int edgeCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            edgeStart[i] = edgeCount;
+            edgeCount += children.get(i).size();
+        }
+        edgeStart[nodeCount] = edgeCount;
+        labels = new char[edgeCount];
+        targets = new int[edgeCount];
+        outputs = new int[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            int e = edgeStart[i];
+            for (Map.Entry<Character, Integer> entry : children.get(i).entrySet()) {
+                labels[e] = entry.getKey();
+                targets[e] = entry.getValue();
+                e++;
+            }
+            List<Integer> ids = ends.get(i);
+            if (null != ids) {
+                outputs[i] = new int[ids.size()];
+                for (int j = 0; j < ids.size(); j++)
+                    outputs[i][j] = ids.get(j);
+            }
+        }
+
+        // 广度优先计算失配指针与输出链
+        fail = new int[nodeCount];
+        outputLink = new int[nodeCount];
+        Arrays.fill(outputLink, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int e = edgeStart[0]; e < edgeStart[1]; e++)
+            queue.add(targets[e]);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int e = edgeStart[node]; e < edgeStart[node + 1]; e++) {
+                int child = targets[e];
+                int f = fail[node];
+                int next;
+                while ((next = step(f, labels[e])) < 0 && 0 != f)
+                    f = fail[f];
+                fail[child] = next < 0 || next == child ? 0 : next;
+                int target = fail[child];
+                outputLink[child] = null != outputs[target] ? target : outputLink[target];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * 构建索引，区分大小写
+     *
+     * @param keywords 关键词，列表顺序即优先级相同时的先后顺序
+     * @param <T>      关联的数据
+     * @return KeywordIndex
+     */
+    public static <T> KeywordIndex<T> build(List<Keyword<T>> keywords) {
+        return new KeywordIndex<T>(keywords, false);
+    }
+
+    /**
+     * 构建索引
+     *
+     * @param keywords   关键词，列表顺序即优先级相同时的先后顺序
+     * @param ignoreCase 是否忽略大小写
+     * @param <T>        关联的数据
+     * @return KeywordIndex
+     */
+    public static <T> KeywordIndex<T> build(List<Keyword<T>> keywords, boolean ignoreCase) {
+        return new KeywordIndex<T>(keywords, ignoreCase);
+    }
+
+    /**
+     * 在后台线程构建索引，构建完成后由调用方替换正在使用的索引
+     *
+     * @param keywords   关键词
+     * @param ignoreCase 是否忽略大小写
+     * @param executor   执行构建的线程池
+     * @param <T>        关联的数据
+     * @return 构建结果
+     */
+    public static <T> CompletableFuture<KeywordIndex<T>> buildAsync(List<Keyword<T>> keywords, boolean ignoreCase, Executor executor) {
+        final List<Keyword<T>> snapshot = new ArrayList<Keyword<T>>(keywords);
+        return CompletableFuture.supplyAsync(() -> new KeywordIndex<T>(snapshot, ignoreCase), executor);
+    }
+
+    public int size() {
+        return keywords.size();
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    public List<Keyword<T>> getKeywords() {
+        return Collections.unmodifiableList(keywords);
+    }
+
+    /**
+     * 返回命中的最优关键词
+     *
+     * @param content 消息内容
+     * @return 关键词，没有命中时返回null
+     */
+    public Keyword<T> match(CharSequence content) {
+        return match(content, null);
+    }
+
+    /**
+     * 返回命中且满足附加条件的最优关键词
+     *
+     * @param content 消息内容
+     * @param filter  附加条件，为null时不限
+     * @return 关键词，没有命中时返回null
+     */
+    public Keyword<T> match(CharSequence content, Predicate<? super T> filter) {
+        if (null == content)
+            return null;
+        int length = content.length();
+        int best = -1;
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            char c = fold(content.charAt(i));
+            int next;
+            while ((next = step(node, c)) < 0 && 0 != node)
+                node = fail[node];
+            node = next < 0 ? 0 : next;
+            for (int n = null != outputs[node] ? node : outputLink[node]; n >= 0; n = outputLink[n]) {
+                for (int id : outputs[n]) {
+                    if (best >= 0 && !isBetter(id, best))
+                        continue;
+                    Keyword<T> keyword = keywords.get(id);
+                    int start = i - keyword.getText().length() + 1;
+                    if (MatchMode.PREFIX == keyword.getMode() && 0 != start)
+                        continue;
+                    if (MatchMode.EXACT == keyword.getMode() && (0 != start || i != length - 1))
+                        continue;
+                    if (null != filter && !filter.test(keyword.getValue()))
+                        continue;
+                    best = id;
+                }
+            }
+        }
+        return best < 0 ? null : keywords.get(best);
+    }
+
+    private boolean isBetter(int id, int current) {
+        int a = keywords.get(id).getPriority();
+        int b = keywords.get(current).getPriority();
+        return a != b ? a > b : id < current;
+    }
+
+    // 沿出边转移，没有对应出边时返回-1
+    private int step(int node, char c) {
+        int low = edgeStart[node];
+        int high = edgeStart[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = labels[mid];
+            if (label < c)
+                low = mid + 1;
+            else if (label > c)
+                high = mid - 1;
+            else
+                return targets[mid];
+        }
+        return -1;
+    }
+
+    private char fold(char c) {
+        return ignoreCase ? Character.toLowerCase(c) : c;
+    }
+}
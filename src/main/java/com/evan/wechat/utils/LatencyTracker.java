@@ -0,0 +1,126 @@
+package com.evan.wechat.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 单个接口的耗时统计
+ * <p>
+ * 耗时按对数分桶（每翻一倍分4个桶，相对误差不超过25%），覆盖0ms到约131秒（最后一个桶的上界131071ms，更长的耗时都计入该桶），记录一次只是一次原子自增。
+ * 统计窗口为1分钟，分位数由当前和上一个窗口合并计算，旧数据最多保留2分钟，接口变慢时能很快反映出来。
+ * 同时记录对冲请求的次数，限制对冲请求不超过请求数的一定比例，避免接口整体变慢时请求量翻倍。
+ */
+public final class LatencyTracker {
+
+    // 计算分位数所需的最少样本数
+    public static final int MIN_SAMPLES = 20;
+    // 对冲请求占请求数的上限，单位：百分比
+    public static final int HEDGE_PERCENT = 10;
+
+    private static final int BUCKETS = 64;
+    private static final long WINDOW = 60 * 1000;
+
+    private volatile Window current;
+    private volatile Window previous;
+
+    public LatencyTracker() {
+        long now = System.currentTimeMillis();
+        this.current = new Window(now);
+        this.previous = new Window(now);
+    }
+
+    /**
+     * 记录一次请求的耗时
+     *
+     * @param millis 耗时，单位：毫秒
+     */
+    public void record(long millis) {
+        window().counts.incrementAndGet(bucket(millis));
+    }
+
+    /**
+     * 计算最近1到2分钟内耗时的分位数
+     *
+     * @param quantile 分位，如0.99
+     * @return 耗时的上界，单位：毫秒；样本不足时返回-1
+     */
+    public long percentile(double quantile) {
+        Window now = window();
+        Window last = previous;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += now.counts.get(i) + last.counts.get(i);
+        if (total < MIN_SAMPLES)
+            return -1;
+        long target = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += now.counts.get(i) + last.counts.get(i);
+            if (seen >= target)
+                return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * 尝试占用一次对冲的额度，对冲请求数不超过当前窗口请求数的HEDGE_PERCENT%
+     *
+     * @return 是否允许发出对冲请求
+     */
+    public boolean tryHedge() {
+        Window window = window();
+        long requests = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            requests += window.counts.get(i);
+        while (true) {
+            long hedges = window.hedges.get();
+            if ((hedges + 1) * 100 > Math.max(requests, MIN_SAMPLES) * HEDGE_PERCENT)
+                return false;
+            if (window.hedges.compareAndSet(hedges, hedges + 1))
+                return true;
+        }
+    }
+
+    private Window window() {
+        Window window = current;
+        long now = System.currentTimeMillis();
+        if (now - window.start < WINDOW)
+            return window;
+        synchronized (this) {
+            window = current;
+            if (now - window.start >= WINDOW) {
+                // 超过两个窗口没有请求时，上一个窗口的数据也已过时
+                previous = now - window.start < WINDOW * 2 ? window : new Window(now);
+                current = window = new Window(now);
+            }
+            return window;
+        }
+    }
+
+    // 小于4ms每毫秒一个桶，之后每翻一倍分4个桶
+    static int bucket(long millis) {
+        if (millis < 4)
+            return millis < 0 ? 0 : (int) millis;
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        int sub = (int) (millis >>> (exponent - 2)) & 3;
+        return Math.min(BUCKETS - 1, 4 * (exponent - 1) + sub);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < 4)
+            return bucket;
+        int exponent = bucket / 4 + 1;
+        int sub = bucket % 4;
+        return ((4L + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    private static final class Window {
+        final long start;
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong hedges = new AtomicLong();
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.evan.wechat.utils;
+
+import com.evan.wechat.event.BaseEvent;
+import com.evan.wechat.event.EventType;
+import com.evan.wechat.event.LocationEvent;
+import com.evan.wechat.event.MenuEvent;
+import com.evan.wechat.event.QRCodeEvent;
+import com.evan.wechat.event.SubscribeEvent;
+import com.evan.wechat.message.MsgType;
+import com.evan.wechat.message.req.BaseMessage;
+import com.evan.wechat.message.req.ImageMessage;
+import com.evan.wechat.message.req.LinkMessage;
+import com.evan.wechat.message.req.LocationMessage;
+import com.evan.wechat.message.req.TextMessage;
+import com.evan.wechat.message.req.VideoMessage;
+import com.evan.wechat.message.req.VoiceMessage;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 将回调XML的字段直接写入req/event下的消息对象
+ * <p>
+ * 每个消息类的setter只在第一次使用时通过反射解析一次，之后按XML节点名直接查表。
+ */
+public class MessageBinder {
+
+    // 已解析过的消息类
+    private static final ConcurrentMap<Class<?>, MessageBinder> binders = new ConcurrentHashMap<Class<?>, MessageBinder>();
+
+    private final Class<?> type;
+    // 无参构造器，消息类没有无参构造器时为null
+    private final Constructor<?> constructor;
+    // XML节点名 -> setter
+    private final Map<String, Setter> setters;
+    // 与setters相同，按数组保存便于遍历
+    private final String[] names;
+    private final Setter[] setterArray;
+
+    private MessageBinder(Class<?> type) {
+        this.type = type;
+        this.constructor = constructor(type);
+        Map<String, Setter> map = new HashMap<String, Setter>();
+        for (Method method : type.getMethods()) {
+            String name = method.getName();
+            if (name.length() > 3 && name.startsWith("set") && 1 == method.getParameterTypes().length
+                    && !Modifier.isStatic(method.getModifiers())) {
+                Setter setter = Setter.of(method);
+                // 节点名与setter后缀一致，如ToUserName -> setToUserName，Location_X -> setLocation_X
+                if (null != setter)
+                    map.put(name.substring(3), setter);
+            }
+        }
+        this.setters = map;
+        this.names = map.keySet().toArray(new String[map.size()]);
+        this.setterArray = new Setter[names.length];
+        for (int i = 0; i < names.length; i++)
+            setterArray[i] = map.get(names[i]);
+    }
+
+    private static Constructor<?> constructor(Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 获取消息类对应的绑定器
+     *
+     * @param type 消息类
+     * @return MessageBinder
+     */
+    public static MessageBinder of(Class<?> type) {
+        MessageBinder binder = binders.get(type);
+        if (null == binder) {
+            binder = new MessageBinder(type);
+            MessageBinder exists = binders.putIfAbsent(type, binder);
+            if (null != exists)
+                binder = exists;
+        }
+        return binder;
+    }
+
+    /**
+     * 根据MsgType、Event选择要绑定的消息类
+     *
+     * @param msgType  消息类型
+     * @param event    事件类型，非事件消息为null
+     * @param eventKey 事件KEY值，用于区分普通关注与扫码关注
+     * @return 消息类
+     */
+    public static Class<?> resolveType(String msgType, String event, String eventKey) {
+        return resolveType(MsgType.of(msgType), EventType.of(event), null != eventKey && !eventKey.isEmpty());
+    }
+
+    /**
+     * 根据消息类型、事件类型选择要绑定的消息类
+     *
+     * @param msgType     消息类型
+     * @param eventType   事件类型
+     * @param hasEventKey 是否带有EventKey，用于区分普通关注与扫码关注
+     * @return 消息类
+     */
+    public static Class<?> resolveType(MsgType msgType, EventType eventType, boolean hasEventKey) {
+        switch (msgType) {
+            case TEXT:
+                return TextMessage.class;
+            case IMAGE:
+                return ImageMessage.class;
+            case VOICE:
+                return VoiceMessage.class;
+            case VIDEO:
+            case SHORTVIDEO:
+                return VideoMessage.class;
+            case LOCATION:
+                return LocationMessage.class;
+            case LINK:
+                return LinkMessage.class;
+            case EVENT:
+                return resolveEventType(eventType, hasEventKey);
+            default:
+                return BaseMessage.class;
+        }
+    }
+
+    private static Class<?> resolveEventType(EventType eventType, boolean hasEventKey) {
+        switch (eventType) {
+            case SUBSCRIBE:
+                // 扫描带参数二维码时，未关注用户推送subscribe且EventKey带qrscene_前缀
+                return hasEventKey ? QRCodeEvent.class : SubscribeEvent.class;
+            case UNSUBSCRIBE:
+                return SubscribeEvent.class;
+            case SCAN:
+                return QRCodeEvent.class;
+            case LOCATION:
+                return LocationEvent.class;
+            default:
+                // CLICK、VIEW及扫码推、拍照发图等菜单事件都带EventKey
+                return eventType.isMenuEvent() ? MenuEvent.class : BaseEvent.class;
+        }
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * 创建一个空的消息对象
+     *
+     * @return 消息对象
+     */
+    public Object newInstance() {
+        if (null == constructor)
+            throw new IllegalStateException("消息类没有无参构造器 " + type.getName());
+        try {
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("无法实例化消息类 " + type.getName(), e);
+        }
+    }
+
+    /**
+     * 将一个XML节点的值写入消息对象，消息类中没有对应字段的节点直接忽略
+     *
+     * @param target 消息对象
+     * @param name   节点名
+     * @param value  节点文本
+     */
+    public void set(Object target, String name, String value) {
+        Setter setter = setters.get(name);
+        if (null != setter)
+            setter.set(target, value);
+    }
+
+    /**
+     * 按节点名、节点值两个数组绑定出一个新的消息对象
+     *
+     * @param names  节点名
+     * @param values 节点文本
+     * @param count  有效节点数
+     * @return 消息对象
+     */
+    public Object bind(String[] names, String[] values, int count) {
+        Object target = newInstance();
+        for (int i = 0; i < count; i++)
+            set(target, names[i], values[i]);
+        return target;
+    }
+
+    /**
+     * 从字节扫描结果绑定出一个新的消息对象，只解码消息类中存在的字段
+     *
+     * @param message 扫描结果
+     * @return 消息对象
+     */
+    public Object bind(XmlMessage message) {
+        Object target = newInstance();
+        for (int i = 0; i < names.length; i++) {
+            int index = message.indexOf(names[i]);
+            if (index >= 0)
+                setterArray[i].set(target, message.getValue(index));
+        }
+        return target;
+    }
+
+    /**
+     * 缓存的setter及其参数类型
+     */
+    private static final class Setter {
+        private static final int STRING = 0;
+        private static final int LONG = 1;
+        private static final int INT = 2;
+        private static final int DOUBLE = 3;
+
+        private final Method method;
+        private final int kind;
+
+        private Setter(Method method, int kind) {
+            this.method = method;
+            this.kind = kind;
+        }
+
+        static Setter of(Method method) {
+            Class<?> param = method.getParameterTypes()[0];
+            if (String.class == param)
+                return new Setter(method, STRING);
+            if (long.class == param || Long.class == param)
+                return new Setter(method, LONG);
+            if (int.class == param || Integer.class == param)
+                return new Setter(method, INT);
+            if (double.class == param || Double.class == param)
+                return new Setter(method, DOUBLE);
+            return null;
+        }
+
+        void set(Object target, String value) {
+            try {
+                switch (kind) {
+                    case STRING:
+                        method.invoke(target, value);
+                        break;
+                    case LONG:
+                        if (!isBlank(value))
+                            method.invoke(target, Long.parseLong(value.trim()));
+                        break;
+                    case INT:
+                        if (!isBlank(value))
+                            method.invoke(target, Integer.parseInt(value.trim()));
+                        break;
+                    default:
+                        if (!isBlank(value))
+                            method.invoke(target, Double.parseDouble(value.trim()));
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("字段" + method.getName().substring(3) + "不是有效的数字: " + value, e);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("调用" + method + "失败", e);
+            }
+        }
+
+        private static boolean isBlank(String value) {
+            return null == value || value.trim().isEmpty();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.evan.wechat.utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * 安全模式下消息的加解密
+ * <p>
+ * 每个公众号创建一个实例，EncodingAESKey解码得到的密钥、IV只计算一次；加解密用的Cipher按线程缓存，
+ * 初始化后反复使用（CBC模式在doFinal后会回到初始化时的状态）。密文的base64直接解码到缓冲池借出的数组中并原地解密。
+ * <p>
+ * 明文格式：16字节随机串 + 4字节网络字节序的消息长度 + 消息 + AppId，按32字节做PKCS#7补位。
+ */
+public class MessageCrypt {
+
+    // PKCS#7补位的块大小
+    private static final int BLOCK_SIZE = 32;
+    private static final int RANDOM_LENGTH = 16;
+
+    // IV固定为密钥前16字节，明文开头的随机串是每条消息唯一的随机性，必须不可预测
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String token;
+    private final byte[] appId;
+    private final SecretKeySpec keySpec;
+    private final IvParameterSpec iv;
+    private final BufferPool bufferPool;
+
+    private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.DECRYPT_MODE);
+        }
+    };
+    private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.ENCRYPT_MODE);
+        }
+    };
+
+    /**
+     * @param token          公众平台配置的Token
+     * @param encodingAesKey 公众平台配置的EncodingAESKey，43位
+     * @param appId          公众号AppId
+     */
+    public MessageCrypt(String token, String encodingAesKey, String appId) {
+        this(token, encodingAesKey, appId, BufferPool.getDefault());
+    }
+
+    /**
+     * @param token          公众平台配置的Token
+     * @param encodingAesKey 公众平台配置的EncodingAESKey，43位
+     * @param appId          公众号AppId
+     * @param bufferPool     密文解码使用的缓冲池
+     */
+    public MessageCrypt(String token, String encodingAesKey, String appId, BufferPool bufferPool) {
+        if (null == encodingAesKey || 43 != encodingAesKey.length())
+            throw new IllegalArgumentException("EncodingAESKey must be 43 characters");
+        byte[] key = Base64.getDecoder().decode(encodingAesKey + "=");
+        this.token = token;
+        this.appId = appId.getBytes(StandardCharsets.UTF_8);
+        this.keySpec = new SecretKeySpec(key, "AES");
+        this.iv = new IvParameterSpec(key, 0, 16);
+        this.bufferPool = bufferPool;
+    }
+
+    private Cipher createCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(mode, keySpec, iv);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("无法初始化AES，JDK 8u161以下需安装JCE无限制策略文件", e);
+        }
+    }
+
+    /**
+     * 校验签名并解密安全模式的回调，返回明文消息的扫描结果
+     *
+     * @param envelope     回调XML的扫描结果，需包含Encrypt节点
+     * @param msgSignature 请求参数msg_signature
+     * @param timestamp    请求参数timestamp
+     * @param nonce        请求参数nonce
+     * @return 明文消息
+     * @throws GeneralSecurityException 签名错误、解密失败或AppId不符
+     */
+    public XmlMessage decrypt(XmlMessage envelope, String msgSignature, String timestamp, String nonce) throws GeneralSecurityException {
+        String encrypt = envelope.get("Encrypt");
+        if (null == encrypt)
+            throw new GeneralSecurityException("缺少Encrypt节点");
+        if (!SignatureUtil.checkMsgSignature(token, msgSignature, timestamp, nonce, encrypt))
+            throw new SignatureException("msg_signature校验失败");
+        return XmlMessage.scan(decrypt(encrypt));
+    }
+
+    /**
+     * 解密密文
+     *
+     * @param encrypt base64编码的密文
+     * @return 明文消息
+     * @throws GeneralSecurityException 解密失败或AppId不符
+     */
+    public byte[] decrypt(String encrypt) throws GeneralSecurityException {
+        int maxLength = encrypt.length() / 4 * 3 + 3;
+        byte[] buffer = maxLength <= bufferPool.getBufferSize() ? bufferPool.acquire() : new byte[maxLength];
+        try {
+            int length = decodeBase64(encrypt, buffer);
+            if (0 == length || 0 != length % 16)
+                throw new GeneralSecurityException("密文长度错误");
+            length = doFinal(decryptCipher, buffer, length);
+            int pad = buffer[length - 1] & 0xFF;
+            if (pad < 1 || pad > BLOCK_SIZE || pad > length)
+                throw new GeneralSecurityException("补位错误");
+            length -= pad;
+            if (length < RANDOM_LENGTH + 4)
+                throw new GeneralSecurityException("明文长度错误");
+            int xmlLength = ((buffer[16] & 0xFF) << 24) | ((buffer[17] & 0xFF) << 16)
+                    | ((buffer[18] & 0xFF) << 8) | (buffer[19] & 0xFF);
+            int xmlStart = RANDOM_LENGTH + 4;
+            if (xmlLength < 0 || xmlStart + xmlLength > length)
+                throw new GeneralSecurityException("消息长度错误");
+            if (!regionEquals(buffer, xmlStart + xmlLength, length, appId))
+                throw new GeneralSecurityException("AppId不符");
+            return Arrays.copyOfRange(buffer, xmlStart, xmlStart + xmlLength);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * 加密被动回复并签名，返回可直接回复给微信的XML
+     *
+     * @param replyXml  明文回复
+     * @param timestamp 时间戳
+     * @param nonce     随机数
+     * @return 加密后的回复XML
+     * @throws GeneralSecurityException
+     */
+    public String encrypt(String replyXml, String timestamp, String nonce) throws GeneralSecurityException {
+        return encrypt(replyXml.getBytes(StandardCharsets.UTF_8), timestamp, nonce);
+    }
+
+    /**
+     * 加密被动回复并签名，返回可直接回复给微信的XML
+     *
+     * @param replyXml  明文回复（UTF-8）
+     * @param timestamp 时间戳
+     * @param nonce     随机数
+     * @return 加密后的回复XML
+     * @throws GeneralSecurityException
+     */
+    public String encrypt(byte[] replyXml, String timestamp, String nonce) throws GeneralSecurityException {
+        String encrypt = encryptToBase64(replyXml, 0, replyXml.length);
+        String signature = SignatureUtil.sortedSha1Hex(token, timestamp, nonce, encrypt);
+        StringBuilder xml = new StringBuilder(encrypt.length() + 256);
+        xml.append("<xml><Encrypt><![CDATA[").append(encrypt)
+                .append("]]></Encrypt><MsgSignature><![CDATA[").append(signature)
+                .append("]]></MsgSignature><TimeStamp>").append(timestamp)
+                .append("</TimeStamp><Nonce><![CDATA[").append(nonce)
+                .append("]]></Nonce></xml>");
+        return xml.toString();
+    }
+
+    /**
+     * 加密明文，返回base64编码的密文
+     *
+     * @param data   明文（UTF-8）
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 密文
+     * @throws GeneralSecurityException
+     */
+    public String encryptToBase64(byte[] data, int offset, int length) throws GeneralSecurityException {
+        int plainLength = RANDOM_LENGTH + 4 + length + appId.length;
+        int pad = BLOCK_SIZE - plainLength % BLOCK_SIZE;
+        int total = plainLength + pad;
+        byte[] buffer = total <= bufferPool.getBufferSize() ? bufferPool.acquire() : new byte[total];
+        try {
+            byte[] prefix = new byte[RANDOM_LENGTH];
+            random.nextBytes(prefix);
+            System.arraycopy(prefix, 0, buffer, 0, RANDOM_LENGTH);
+            buffer[16] = (byte) (length >>> 24);
+            buffer[17] = (byte) (length >>> 16);
+            buffer[18] = (byte) (length >>> 8);
+            buffer[19] = (byte) length;
+            System.arraycopy(data, offset, buffer, 20, length);
+            System.arraycopy(appId, 0, buffer, 20 + length, appId.length);
+            Arrays.fill(buffer, plainLength, total, (byte) pad);
+            int n = doFinal(encryptCipher, buffer, total);
+            ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(buffer, 0, n));
+            return new String(encoded.array(), 0, encoded.remaining(), StandardCharsets.US_ASCII);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    // 原地加解密，出错时丢弃当前线程的Cipher，避免复用状态异常的实例
+    private static int doFinal(ThreadLocal<Cipher> cipher, byte[] buffer, int length) throws GeneralSecurityException {
+        try {
+            return cipher.get().doFinal(buffer, 0, length, buffer, 0);
+        } catch (GeneralSecurityException e) {
+            cipher.remove();
+            throw e;
+        }
+    }
+
+    private static boolean regionEquals(byte[] buffer, int start, int end, byte[] expected) {
+        if (end - start != expected.length)
+            return false;
+        int diff = 0;
+        for (int i = 0; i < expected.length; i++)
+            diff |= buffer[start + i] ^ expected[i];
+        return 0 == diff;
+    }
+
+    // base64解码到目标数组，忽略空白字符，返回解码后的长度
+    private static int decodeBase64(String src, byte[] dst) throws GeneralSecurityException {
+        int bits = 0;
+        int count = 0;
+        int n = 0;
+        for (int i = 0; i < src.length(); i++) {
+            char c = src.charAt(i);
+            int v;
+            if (c >= 'A' && c <= 'Z')
+                v = c - 'A';
+            else if (c >= 'a' && c <= 'z')
+                v = c - 'a' + 26;
+            else if (c >= '0' && c <= '9')
+                v = c - '0' + 52;
+            else if ('+' == c)
+                v = 62;
+            else if ('/' == c)
+                v = 63;
+            else if ('=' == c)
+                break;
+            else if (' ' == c || '\r' == c || '\n' == c || '\t' == c)
+                continue;
+            else
+                throw new GeneralSecurityException("非法的base64字符: " + c);
+            bits = (bits << 6) | v;
+            if (4 == ++count) {
+                dst[n++] = (byte) (bits >> 16);
+                dst[n++] = (byte) (bits >> 8);
+                dst[n++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (2 == count) {
+            dst[n++] = (byte) (bits >> 4);
+        } else if (3 == count) {
+            dst[n++] = (byte) (bits >> 10);
+            dst[n++] = (byte) (bits >> 2);
+        } else if (1 == count) {
+            throw new GeneralSecurityException("base64长度错误");
+        }
+        return n;
+    }
+}
@@ -1,21 +1,27 @@
 package com.evan.wechat.utils;
 
 import com.evan.wechat.message.resp.*;
-import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.core.util.QuickWriter;
-import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
-import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
-import com.thoughtworks.xstream.io.xml.XppDriver;
 import org.dom4j.Document;
+import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.dom4j.io.SAXReader;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 
 public class MessageUtil {
@@ -61,6 +67,47 @@ public class MessageUtil {
     // 响应消息类型：图文
     public static final String RESP_MESSAGE_TYPE_NEWS = "news";
 
+    /**
+     * 请求XML的解析方式
+     */
+    public enum ParseMode {
+        // 基于StAX的流式解析，不构建文档树（默认）
+        STAX,
+        // 基于dom4j构建Document后解析
+        DOM4J
+    }
+
+    // 当前使用的解析方式
+    private static volatile ParseMode parseMode = ParseMode.STAX;
+
+    /**
+     * StAX工厂创建后只读，可在多线程间共享；关闭DTD及外部实体，防止XXE
+     */
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        return factory;
+    }
+
+    public static ParseMode getParseMode() {
+        return parseMode;
+    }
+
+    /**
+     * 设置请求XML的解析方式
+     *
+     * @param mode 解析方式
+     */
+    public static void setParseMode(ParseMode mode) {
+        if (null == mode)
+            throw new IllegalArgumentException("parseMode must not be null");
+        parseMode = mode;
+    }
+
     /**
      * 解析微信发来的请求（XML）
      *
@@ -68,13 +115,253 @@ public class MessageUtil {
      * @return Map<String, String>
      * @throws Exception
      */
-    @SuppressWarnings("unchecked")
     public static Map<String, String> parseXml(HttpServletRequest request) throws Exception {
-        // 将解析结果存储在HashMap中
+        // 从request中取得输入流
+        InputStream inputStream = request.getInputStream();
+        try {
+            return parseXml(inputStream);
+        } finally {
+            // 释放资源
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 解析微信发来的请求（XML），按当前解析方式处理
+     *
+     * @param inputStream 请求体
+     * @return Map<String, String>
+     * @throws Exception
+     */
+    public static Map<String, String> parseXml(InputStream inputStream) throws Exception {
+        if (ParseMode.DOM4J == parseMode)
+            return parseXmlByDom4j(inputStream);
+        return parseXmlByStax(inputStream);
+    }
+
+    /**
+     * 流式解析：只读取根元素下一级子节点的文本，一次遍历得到与dom4j方式相同的结果
+     *
+     * @param inputStream 请求体
+     * @return Map<String, String>
+     * @throws XMLStreamException
+     */
+    public static Map<String, String> parseXmlByStax(InputStream inputStream) throws XMLStreamException {
         Map<String, String> map = new HashMap<String, String>();
+        readElements(inputStream, map::put);
+        return map;
+    }
 
-        // 从request中取得输入流
+    /**
+     * 遍历根元素下一级子节点，依次回调节点名和节点文本
+     *
+     * @param inputStream 请求体
+     * @param consumer    节点名、节点文本的接收者
+     * @throws XMLStreamException
+     */
+    private static void readElements(InputStream inputStream, BiConsumer<String, String> consumer) throws XMLStreamException {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+        try {
+            // 当前深度，根元素为1
+            int depth = 0;
+            String name = null;
+            StringBuilder text = new StringBuilder(64);
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (XMLStreamConstants.START_ELEMENT == event) {
+                    depth++;
+                    if (2 == depth) {
+                        name = reader.getLocalName();
+                        text.setLength(0);
+                    }
+                } else if (XMLStreamConstants.END_ELEMENT == event) {
+                    if (2 == depth) {
+                        consumer.accept(name, text.toString());
+                        name = null;
+                    }
+                    depth--;
+                } else if (2 == depth && (XMLStreamConstants.CHARACTERS == event
+                        || XMLStreamConstants.CDATA == event
+                        || XMLStreamConstants.SPACE == event)) {
+                    // 与dom4j的getText()一致，只取子节点自身的文本，忽略更深层节点
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 读取请求体并按字节扫描，字段在被读取时才解码为字符串
+     *
+     * @param request
+     * @return XmlMessage
+     * @throws IOException
+     */
+    public static XmlMessage scanXml(HttpServletRequest request) throws IOException {
+        InputStream inputStream = request.getInputStream();
+        try {
+            return XmlMessage.scan(readBody(inputStream, request.getContentLength()));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 读取请求体并按字节扫描，安全模式（encrypt_type=aes）下先校验msg_signature并解密
+     *
+     * @param request
+     * @param crypt   公众号的加解密实例，为null时按明文处理
+     * @return 明文消息的扫描结果
+     * @throws IOException
+     * @throws GeneralSecurityException 签名错误或解密失败
+     */
+    public static XmlMessage scanXml(HttpServletRequest request, MessageCrypt crypt) throws IOException, GeneralSecurityException {
+        XmlMessage message = scanXml(request);
+        if (null == crypt || !"aes".equals(request.getParameter("encrypt_type")))
+            return message;
+        return crypt.decrypt(message, request.getParameter("msg_signature"),
+                request.getParameter("timestamp"), request.getParameter("nonce"));
+    }
+
+    /**
+     * 按字节扫描请求体
+     *
+     * @param data 请求体
+     * @return XmlMessage
+     */
+    public static XmlMessage scanXml(byte[] data) {
+        return XmlMessage.scan(data);
+    }
+
+    /**
+     * 按字节扫描请求体
+     *
+     * @param buffer 请求体
+     * @return XmlMessage
+     */
+    public static XmlMessage scanXml(ByteBuffer buffer) {
+        return XmlMessage.scan(buffer);
+    }
+
+    /**
+     * 读取完整请求体
+     *
+     * @param inputStream   输入流
+     * @param contentLength 请求头中的长度，未知时传-1
+     * @return 请求体
+     * @throws IOException
+     */
+    public static byte[] readBody(InputStream inputStream, int contentLength) throws IOException {
+        byte[] buffer = new byte[contentLength > 0 ? contentLength : 1024];
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                // 缓冲区已满时先探测是否还有数据，长度已知的请求体不会多分配
+                int b = inputStream.read();
+                if (b < 0)
+                    break;
+                buffer = Arrays.copyOf(buffer, buffer.length << 1);
+                buffer[length++] = (byte) b;
+            }
+            int n = inputStream.read(buffer, length, buffer.length - length);
+            if (n < 0)
+                break;
+            length += n;
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * 将微信发来的请求直接解析为消息对象
+     * <p>
+     * 普通消息返回com.evan.wechat.message.req下的对象，事件推送返回com.evan.wechat.event下的对象，
+     * 具体类型由MsgType、Event决定。
+     *
+     * @param request
+     * @return 消息对象
+     * @throws Exception
+     */
+    public static Object parseMessage(HttpServletRequest request) throws Exception {
         InputStream inputStream = request.getInputStream();
+        try {
+            return parseMessage(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 将微信发来的请求直接解析为消息对象
+     *
+     * @param inputStream 请求体
+     * @return 消息对象
+     * @throws XMLStreamException
+     */
+    public static Object parseMessage(InputStream inputStream) throws XMLStreamException {
+        FieldBuffer fields = new FieldBuffer();
+        readElements(inputStream, fields);
+        Class<?> type = MessageBinder.resolveType(fields.get("MsgType"), fields.get("Event"), fields.get("EventKey"));
+        return MessageBinder.of(type).bind(fields.names, fields.values, fields.size);
+    }
+
+    /**
+     * 将字节扫描结果绑定为消息对象，消息类型直接在字节上识别
+     *
+     * @param message 扫描结果
+     * @return 消息对象
+     */
+    public static Object parseMessage(XmlMessage message) {
+        Class<?> type = MessageBinder.resolveType(message.getMsgType(), message.getEventType(), isNotEmpty(message, "EventKey"));
+        return MessageBinder.of(type).bind(message);
+    }
+
+    private static boolean isNotEmpty(XmlMessage message, String name) {
+        int index = message.indexOf(name);
+        return index >= 0 && !message.getValue(index).isEmpty();
+    }
+
+    /**
+     * 按读取顺序暂存节点，消息类型确定后再一次性绑定
+     */
+    private static final class FieldBuffer implements BiConsumer<String, String> {
+        String[] names = new String[16];
+        String[] values = new String[16];
+        int size;
+
+        @Override
+        public void accept(String name, String value) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size << 1);
+                values = Arrays.copyOf(values, size << 1);
+            }
+            names[size] = name;
+            values[size] = value;
+            size++;
+        }
+
+        String get(String name) {
+            for (int i = 0; i < size; i++) {
+                if (name.equals(names[i]))
+                    return values[i];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 基于dom4j的解析方式
+     *
+     * @param inputStream 请求体
+     * @return Map<String, String>
+     * @throws DocumentException
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, String> parseXmlByDom4j(InputStream inputStream) throws DocumentException {
+        // 将解析结果存储在HashMap中
+        Map<String, String> map = new HashMap<String, String>();
+
         // 读取输入流
         SAXReader reader = new SAXReader();
         Document document = reader.read(inputStream);
@@ -87,39 +374,76 @@ public class MessageUtil {
         for (Element e : elementList)
             map.put(e.getName(), e.getText());
 
-        // 释放资源
-        inputStream.close();
-        inputStream = null;
-
         return map;
     }
 
     /**
-     * 扩展xstream使其支持CDATA
+     * 任意响应消息对象转换成xml
+     *
+     * @param message 响应消息对象
+     * @return xml
      */
-    private static XStream xstream = new XStream(new XppDriver() {
-        public HierarchicalStreamWriter createWriter(Writer out) {
-            return new PrettyPrintWriter(out) {
-                // 对所有xml节点的转换都增加CDATA标记
-                boolean cdata = true;
+    public static String messageToXml(BaseMessage message) {
+        return XmlSerializer.of(message.getClass()).toXml(message);
+    }
 
-                @SuppressWarnings("unchecked")
-                public void startNode(String name, Class clazz) {
-                    super.startNode(name, clazz);
-                }
+    /**
+     * 响应消息对象直接按UTF-8写入输出流，如HttpServletResponse.getOutputStream()
+     * <p>
+     * 序列化结果只编码一次，写入当前线程复用的缓冲区后直接输出，不经过String。
+     *
+     * @param message 响应消息对象
+     * @param out     输出流
+     * @return 写出的字节数
+     * @throws IOException
+     */
+    public static int writeXml(BaseMessage message, OutputStream out) throws IOException {
+        Utf8Writer writer = Utf8Writer.local();
+        XmlSerializer.of(message.getClass()).write(message, writer);
+        writer.writeTo(out);
+        return writer.size();
+    }
 
-                protected void writeText(QuickWriter writer, String text) {
-                    if (cdata) {
-                        writer.write("<![CDATA[");
-                        writer.write(text);
-                        writer.write("]]>");
-                    } else {
-                        writer.write(text);
-                    }
-                }
-            };
-        }
-    });
+    /**
+     * 响应消息对象直接按UTF-8写入Channel
+     *
+     * @param message 响应消息对象
+     * @param channel 输出
+     * @return 写出的字节数
+     * @throws IOException
+     */
+    public static int writeXml(BaseMessage message, WritableByteChannel channel) throws IOException {
+        Utf8Writer writer = Utf8Writer.local();
+        XmlSerializer.of(message.getClass()).write(message, writer);
+        writer.writeTo(channel);
+        return writer.size();
+    }
+
+    /**
+     * 响应消息对象转换成UTF-8编码的xml
+     *
+     * @param message 响应消息对象
+     * @return xml
+     */
+    public static byte[] toXmlBytes(BaseMessage message) {
+        Utf8Writer writer = Utf8Writer.local();
+        XmlSerializer.of(message.getClass()).write(message, writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * 响应消息对象转换成安全模式下的加密xml
+     *
+     * @param message   响应消息对象
+     * @param crypt     公众号的加解密实例
+     * @param timestamp 时间戳
+     * @param nonce     随机数
+     * @return 加密后的xml
+     * @throws GeneralSecurityException
+     */
+    public static String messageToXml(BaseMessage message, MessageCrypt crypt, String timestamp, String nonce) throws GeneralSecurityException {
+        return crypt.encrypt(messageToXml(message), timestamp, nonce);
+    }
 
     /**
      * 文本消息对象转换成xml
@@ -128,8 +452,7 @@ public class MessageUtil {
      * @return xml
      */
     public static String messageToXml(TextMessage textMessage) {
-        xstream.alias("xml", textMessage.getClass());
-        return xstream.toXML(textMessage);
+        return XmlSerializer.of(textMessage.getClass()).toXml(textMessage);
     }
 
     /**
@@ -139,8 +462,7 @@ public class MessageUtil {
      * @return xml
      */
     public static String messageToXml(ImageMessage imageMessage) {
-        xstream.alias("xml", imageMessage.getClass());
-        return xstream.toXML(imageMessage);
+        return XmlSerializer.of(imageMessage.getClass()).toXml(imageMessage);
     }
 
     /**
@@ -150,8 +472,7 @@ public class MessageUtil {
      * @return xml
      */
     public static String messageToXml(VoiceMessage voiceMessage) {
-        xstream.alias("xml", voiceMessage.getClass());
-        return xstream.toXML(voiceMessage);
+        return XmlSerializer.of(voiceMessage.getClass()).toXml(voiceMessage);
     }
 
     /**
@@ -161,8 +482,7 @@ public class MessageUtil {
      * @return xml
      */
     public static String messageToXml(VideoMessage videoMessage) {
-        xstream.alias("xml", videoMessage.getClass());
-        return xstream.toXML(videoMessage);
+        return XmlSerializer.of(videoMessage.getClass()).toXml(videoMessage);
     }
 
     /**
@@ -172,8 +492,7 @@ public class MessageUtil {
      * @return xml
      */
     public static String messageToXml(MusicMessage musicMessage) {
-        xstream.alias("xml", musicMessage.getClass());
-        return xstream.toXML(musicMessage);
+        return XmlSerializer.of(musicMessage.getClass()).toXml(musicMessage);
     }
 
     /**
@@ -183,8 +502,6 @@ public class MessageUtil {
      * @return xml
      */
     public static String messageToXml(NewsMessage newsMessage) {
-        xstream.alias("xml", newsMessage.getClass());
-        xstream.alias("item", new Article().getClass());
-        return xstream.toXML(newsMessage);
+        return XmlSerializer.of(newsMessage.getClass()).toXml(newsMessage);
     }
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+package com.evan.wechat.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 回调重试去重
+ * <p>
+ * 微信收不到回复时会重试3次。以ToUserName+MsgId（事件消息以ToUserName+FromUserName+CreateTime）为键缓存被动回复的字节：
+ * 原请求仍在处理时，重试请求拿到同一个future，处理完成后回复相同的内容；处理完成后到达的重试直接使用缓存。
+ * 按键的哈希分段加锁，每段为按插入顺序淘汰的有界LinkedHashMap，条目超过ttl后视为不存在。
+ * <p>
+ * 去重键取自明文字段。安全模式的回调只有ToUserName和Encrypt，没有MsgId、FromUserName，
+ * 需先解密再调用 {@link #keyOf(XmlMessage)}，直接传入密文信封时返回null，即不去重；兼容模式的信封带有明文字段，可直接使用。
+ */
+public final class RetryCache {
+
+    // 默认最多缓存的消息数
+    public static final int DEFAULT_MAX_ENTRIES = 16 * 1024;
+    // 默认缓存时间，覆盖微信3次重试的间隔，单位：毫秒
+    public static final long DEFAULT_TTL = 30000;
+    // 默认分段数
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final Segment[] segments;
+    private final int mask;
+    private final long ttl;
+
+    public RetryCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxEntries 最多缓存的消息数
+     * @param ttl        缓存时间，单位：毫秒
+     * @param stripes    分段数，向上取整为2的幂
+     */
+    public RetryCache(int maxEntries, long ttl, int stripes) {
+        if (maxEntries <= 0 || stripes <= 0)
+            throw new IllegalArgumentException("maxEntries and stripes must be positive");
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+        this.segments = new Segment[n];
+        this.mask = n - 1;
+        this.ttl = ttl;
+        int perSegment = Math.max(1, (maxEntries + n - 1) / n);
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment(perSegment);
+    }
+
+    /**
+     * 去重键：普通消息为ToUserName#MsgId，事件为ToUserName#FromUserName#CreateTime。
+     * 带上ToUserName，多个公众号共用一个回调地址时不会互相冲突
+     *
+     * @param message 明文消息
+     * @return 去重键，缺少必要字段（如安全模式的密文信封）时返回null
+     */
+    public static String keyOf(XmlMessage message) {
+        String toUser = message.get("ToUserName");
+        if (null == toUser)
+            return null;
+        String msgId = message.get("MsgId");
+        if (null != msgId)
+            return toUser + '#' + msgId;
+        String fromUser = message.get("FromUserName");
+        String createTime = message.get("CreateTime");
+        if (null == fromUser || null == createTime)
+            return null;
+        return toUser + '#' + fromUser + '#' + createTime;
+    }
+
+    /**
+     * 登记一条消息的回复
+     *
+     * @param key   去重键
+     * @param reply 本次处理的回复
+     * @return 已登记且未过期的回复（本次为重试），否则登记reply并返回null
+     */
+    public CompletableFuture<byte[]> putIfAbsent(String key, CompletableFuture<byte[]> reply) {
+        Segment segment = segmentFor(key);
+        long now = System.currentTimeMillis();
+        synchronized (segment) {
+            Slot slot = segment.get(key);
+            if (null != slot) {
+                if (slot.expireAt > now)
+                    return slot.reply;
+                segment.remove(key);
+            }
+            segment.put(key, new Slot(reply, now + ttl));
+            return null;
+        }
+    }
+
+    /**
+     * 取得未过期的回复
+     *
+     * @param key 去重键
+     * @return 回复，没有时返回null
+     */
+    public CompletableFuture<byte[]> get(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Slot slot = segment.get(key);
+            return null != slot && slot.expireAt > System.currentTimeMillis() ? slot.reply : null;
+        }
+    }
+
+    /**
+     * 处理失败时移除登记，让下一次重试重新处理
+     *
+     * @param key   去重键
+     * @param reply 登记时的回复
+     * @return 是否移除
+     */
+    public boolean remove(String key, CompletableFuture<byte[]> reply) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Slot slot = segment.get(key);
+            if (null == slot || slot.reply != reply)
+                return false;
+            segment.remove(key);
+            return true;
+        }
+    }
+
+    /**
+     * @return 缓存的条目数，含已过期未清除的
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & mask];
+    }
+
+    // 不能命名为Entry，在Segment内会与继承的Map.Entry冲突
+    private static final class Slot {
+        final CompletableFuture<byte[]> reply;
+        final long expireAt;
+
+        Slot(CompletableFuture<byte[]> reply, long expireAt) {
+            this.reply = reply;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 一个分段，超过容量时淘汰最早登记的条目
+     */
+    private static final class Segment extends LinkedHashMap<String, Slot> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(Math.min(capacity, 1024) * 2);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest) {
+            return size() > capacity;
+        }
+    }
+}
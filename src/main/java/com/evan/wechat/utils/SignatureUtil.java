@@ -0,0 +1,276 @@
+package com.evan.wechat.utils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 微信回调签名校验
+ * <p>
+ * 每个线程复用一个SHA-1摘要及其缓冲区，字典序排序、拼接、摘要、比较都在缓冲区上完成，
+ * 参数为ASCII时（token、timestamp、nonce通常如此）校验过程不产生临时对象。
+ */
+public class SignatureUtil {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] NONCE_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    // 随机串长度
+    private static final int NONCE_LENGTH = 16;
+
+    // SHA-1摘要长度
+    private static final int SHA1_LENGTH = 20;
+
+    private static final ThreadLocal<Sha1> sha1 = new ThreadLocal<Sha1>() {
+        @Override
+        protected Sha1 initialValue() {
+            return new Sha1();
+        }
+    };
+
+    /**
+     * 校验请求中的signature、timestamp、nonce参数
+     *
+     * @param token   公众平台配置的Token
+     * @param request
+     * @return 签名是否正确
+     */
+    public static boolean checkSignature(String token, HttpServletRequest request) {
+        return checkSignature(token, request.getParameter("signature"),
+                request.getParameter("timestamp"), request.getParameter("nonce"));
+    }
+
+    /**
+     * 校验签名：将token、timestamp、nonce按字典序排序后拼接做SHA-1，与signature比较
+     *
+     * @param token     公众平台配置的Token
+     * @param signature 微信加密签名
+     * @param timestamp 时间戳
+     * @param nonce     随机数
+     * @return 签名是否正确
+     */
+    public static boolean checkSignature(String token, String signature, String timestamp, String nonce) {
+        if (null == token || null == signature || null == timestamp || null == nonce)
+            return false;
+        // 三个参数的排序直接交换引用完成
+        String a = token, b = timestamp, c = nonce, t;
+        if (a.compareTo(b) > 0) {
+            t = a;
+            a = b;
+            b = t;
+        }
+        if (b.compareTo(c) > 0) {
+            t = b;
+            b = c;
+            c = t;
+        }
+        if (a.compareTo(b) > 0) {
+            t = a;
+            a = b;
+            b = t;
+        }
+        Sha1 sha = sha1.get().begin();
+        sha.update(a);
+        sha.update(b);
+        sha.update(c);
+        return sha.matches(signature);
+    }
+
+    /**
+     * 校验安全模式下的消息签名：将token、timestamp、nonce及密文按字典序排序后拼接做SHA-1，与msg_signature比较
+     *
+     * @param token        公众平台配置的Token
+     * @param msgSignature 消息签名
+     * @param timestamp    时间戳
+     * @param nonce        随机数
+     * @param encrypt      消息密文
+     * @return 签名是否正确
+     */
+    public static boolean checkMsgSignature(String token, String msgSignature, String timestamp, String nonce, String encrypt) {
+        if (null == token || null == msgSignature || null == timestamp || null == nonce || null == encrypt)
+            return false;
+        Sha1 sha = sha1.get().begin();
+        String[] parts = sha.parts;
+        parts[0] = token;
+        parts[1] = timestamp;
+        parts[2] = nonce;
+        parts[3] = encrypt;
+        // 插入排序，使用线程私有数组避免分配
+        for (int i = 1; i < 4; i++) {
+            String key = parts[i];
+            int j = i - 1;
+            while (j >= 0 && parts[j].compareTo(key) > 0) {
+                parts[j + 1] = parts[j];
+                j--;
+            }
+            parts[j + 1] = key;
+        }
+        for (int i = 0; i < 4; i++) {
+            sha.update(parts[i]);
+            parts[i] = null;
+        }
+        return sha.matches(msgSignature);
+    }
+
+    /**
+     * 计算若干字符串按字典序排序、拼接后的SHA-1十六进制串
+     *
+     * @param parts 参与签名的字符串
+     * @return 小写十六进制签名
+     */
+    public static String sortedSha1Hex(String... parts) {
+        String[] sorted = parts.clone();
+        Arrays.sort(sorted);
+        Sha1 sha = sha1.get().begin();
+        for (String part : sorted)
+            sha.update(part);
+        return sha.hex();
+    }
+
+    /**
+     * JS-SDK权限验证签名：对 jsapi_ticket=...&amp;noncestr=...&amp;timestamp=...&amp;url=... 做SHA-1，
+     * 各段直接写入线程私有的摘要，不拼接字符串
+     *
+     * @param jsapiTicket jsapi_ticket
+     * @param nonceStr    随机串
+     * @param timestamp   时间戳
+     * @param url         当前网页的URL，不含#及其后面的部分
+     * @return 小写十六进制签名
+     * @throws IllegalArgumentException 参数为null
+     */
+    public static String jsapiSignature(String jsapiTicket, String nonceStr, String timestamp, String url) {
+        if (null == jsapiTicket || null == nonceStr || null == timestamp || null == url)
+            throw new IllegalArgumentException("jsapiTicket, nonceStr, timestamp and url must not be null");
+        Sha1 sha = sha1.get().begin();
+        sha.update("jsapi_ticket=");
+        sha.update(jsapiTicket);
+        sha.update("&noncestr=");
+        sha.update(nonceStr);
+        sha.update("&timestamp=");
+        sha.update(timestamp);
+        sha.update("&url=");
+        sha.update(url);
+        return sha.hex();
+    }
+
+    /**
+     * 生成16位字母数字随机串，用作签名的nonceStr。随机串只用于防重放，不需要SecureRandom
+     *
+     * @return 随机串
+     */
+    public static String nonceStr() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] chars = new char[NONCE_LENGTH];
+        for (int i = 0; i < NONCE_LENGTH; i++)
+            chars[i] = NONCE_CHARS[random.nextInt(NONCE_CHARS.length)];
+        return new String(chars);
+    }
+
+    /**
+     * 将字节数组编码为小写十六进制串
+     *
+     * @param bytes 字节
+     * @return 十六进制串
+     */
+    public static String toHex(byte[] bytes) {
+        return toHex(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 将字节数组的一段编码为小写十六进制串，按查表方式逐字节转换
+     *
+     * @param bytes  字节
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 十六进制串
+     */
+    public static String toHex(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length << 1];
+        for (int i = 0; i < length; i++) {
+            int v = bytes[offset + i] & 0xFF;
+            chars[i << 1] = HEX[v >>> 4];
+            chars[(i << 1) + 1] = HEX[v & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 线程私有的SHA-1摘要及缓冲区
+     */
+    private static final class Sha1 {
+        private final MessageDigest digest;
+        private final byte[] scratch = new byte[256];
+        private final byte[] result = new byte[SHA1_LENGTH];
+        // 排序用的临时数组
+        private final String[] parts = new String[4];
+
+        Sha1() {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // 每次计算前清空摘要，上一次计算中途抛出异常时残留的输入不会混入
+        Sha1 begin() {
+            digest.reset();
+            return this;
+        }
+
+        // ASCII字符直接写入缓冲区，含非ASCII字符时按UTF-8编码
+        void update(String s) {
+            int length = s.length();
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                char ch = s.charAt(i);
+                if (ch >= 0x80) {
+                    digest.update(scratch, 0, n);
+                    digest.update(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                scratch[n++] = (byte) ch;
+                if (n == scratch.length) {
+                    digest.update(scratch, 0, n);
+                    n = 0;
+                }
+            }
+            digest.update(scratch, 0, n);
+        }
+
+        private void finish() {
+            try {
+                digest.digest(result, 0, SHA1_LENGTH);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        String hex() {
+            finish();
+            return toHex(result);
+        }
+
+        // 与十六进制签名做恒定时间比较，忽略大小写
+        boolean matches(String signature) {
+            finish();
+            if (signature.length() != SHA1_LENGTH << 1)
+                return false;
+            int diff = 0;
+            for (int i = 0; i < SHA1_LENGTH; i++) {
+                int v = result[i] & 0xFF;
+                diff |= lowerHex(signature.charAt(i << 1)) ^ HEX[v >>> 4];
+                diff |= lowerHex(signature.charAt((i << 1) + 1)) ^ HEX[v & 0x0F];
+            }
+            return 0 == diff;
+        }
+
+        // 只把A-F转为小写，其他字符原样参与比较，非十六进制字符不会与任何一位相等
+        private static int lowerHex(char c) {
+            return c >= 'A' && c <= 'F' ? c + ('a' - 'A') : c;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.evan.wechat.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 直接按UTF-8编码写入的可复用字节缓冲区
+ * <p>
+ * 序列化时字符只编码一次，写入后可直接输出到OutputStream或Channel，不经过String、byte[]的中间拷贝。
+ * 每个线程可通过 {@link #local()} 复用同一个实例，非线程安全。
+ */
+public final class Utf8Writer {
+
+    // 线程复用时保留的最大容量，超过时丢弃以免长期占用内存
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<Utf8Writer> local = new ThreadLocal<Utf8Writer>() {
+        @Override
+        protected Utf8Writer initialValue() {
+            return new Utf8Writer(1024);
+        }
+    };
+
+    private byte[] buffer;
+    private int size;
+
+    public Utf8Writer(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * 取得当前线程的实例并清空，使用完毕前不能再次调用
+     *
+     * @return Utf8Writer
+     */
+    public static Utf8Writer local() {
+        Utf8Writer writer = local.get();
+        if (writer.buffer.length > MAX_RETAINED_CAPACITY) {
+            writer = new Utf8Writer(1024);
+            local.set(writer);
+        }
+        writer.size = 0;
+        return writer;
+    }
+
+    public Utf8Writer reset() {
+        size = 0;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + extra));
+    }
+
+    /**
+     * 写入原始字节，如预先编码好的节点名
+     */
+    public Utf8Writer write(byte[] bytes) {
+        return write(bytes, 0, bytes.length);
+    }
+
+    public Utf8Writer write(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * 写入十进制整数，不创建字符串
+     */
+    public Utf8Writer write(long value) {
+        if (Long.MIN_VALUE == value)
+            return write(Long.toString(value));
+        ensure(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            buffer[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // 倒序写入后翻转
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte t = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = t;
+        }
+        return this;
+    }
+
+    /**
+     * 按UTF-8编码写入字符
+     */
+    public Utf8Writer write(CharSequence s) {
+        return write(s, 0, s.length());
+    }
+
+    /**
+     * 按UTF-8编码写入字符序列的一段
+     */
+    public Utf8Writer write(CharSequence s, int start, int end) {
+        ensure(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else {
+                ensure(4 + end - i);
+                if (c < 0x800) {
+                    buffer[size++] = (byte) (0xC0 | (c >> 6));
+                    buffer[size++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[size++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // 不成对的代理字符按'?'输出，与String.getBytes一致
+                    buffer[size++] = '?';
+                } else {
+                    buffer[size++] = (byte) (0xE0 | (c >> 12));
+                    buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[size++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 写入CDATA段。取值中的"]]&gt;"会提前结束CDATA，因此拆成两段：
+     * "]]" 留在前一段，"&gt;" 放到新的一段。
+     */
+    public Utf8Writer writeCdata(CharSequence s) {
+        writeAscii("<![CDATA[");
+        int length = s.length();
+        int from = 0;
+        for (int i = 0; i + 2 < length; i++) {
+            if (']' == s.charAt(i) && ']' == s.charAt(i + 1) && '>' == s.charAt(i + 2)) {
+                write(s, from, i + 2);
+                writeAscii("]]><![CDATA[");
+                from = i + 2;
+                i++;
+            }
+        }
+        write(s, from, length);
+        writeAscii("]]>");
+        return this;
+    }
+
+    private void writeAscii(String s) {
+        int length = s.length();
+        ensure(length);
+        for (int i = 0; i < length; i++)
+            buffer[size++] = (byte) s.charAt(i);
+    }
+
+    /**
+     * 输出全部内容
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * 输出全部内容，直到Channel接收完毕
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, size);
+        while (bb.hasRemaining())
+            channel.write(bb);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,391 @@
+package com.evan.wechat.utils;
+
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.JSONObject;
+import com.evan.wechat.menu.Menu;
+import com.evan.wechat.message.resp.BaseMessage;
+import com.evan.wechat.model.AccessToken;
+import com.evan.wechat.model.SNSUserInfo;
+import com.evan.wechat.model.WeixinOauth2Token;
+import com.evan.wechat.model.WeixinUserInfo;
+import com.evan.wechat.token.AccessTokenManager;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 异步调用微信接口，结果以CompletableFuture返回
+ * <p>
+ * 基于HttpAsyncClient的非阻塞IO，少量IO线程即可同时维持上千个请求。同时进行的请求数由信号量限制，
+ * 达到上限时发起请求的线程阻塞等待，形成背压，请求不会无限堆积。
+ * 网络错误、超时以异常结束future；接口返回的错误码与WeixinUtil中对应的同步方法处理方式相同。
+ * future在IO线程上完成，其回调中不应执行耗时操作，也不应直接发起新请求（可能因背压阻塞IO线程），需要时使用thenComposeAsync；
+ * access_token缓存缺失或失效时的刷新是同步请求，放到单独的线程执行。
+ * 关闭后新请求和因背压阻塞的请求都以IllegalStateException结束。
+ * <pre>
+ * WeixinAsyncClient client = new WeixinAsyncClient();
+ * CompletableFuture&lt;List&lt;WeixinUserInfo&gt;&gt; users = client.getUserInfos(tokens, openIds);
+ * </pre>
+ */
+public class WeixinAsyncClient implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(WeixinAsyncClient.class);
+
+    // 默认同时进行的请求数
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    // 默认连接和读取超时，单位：毫秒
+    public static final int DEFAULT_TIMEOUT = 10 * 1000;
+
+    private final CloseableHttpAsyncClient client;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    // 刷新access_token及随后重试的线程，刷新是单飞的，少量线程即可
+    private final ExecutorService tokenExecutor;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public WeixinAsyncClient() {
+        this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param maxInFlight 同时进行的请求数上限
+     * @param timeout     连接和读取超时，单位：毫秒
+     */
+    public WeixinAsyncClient(int maxInFlight, int timeout) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(Math.min(4, Runtime.getRuntime().availableProcessors()))
+                .setConnectTimeout(timeout)
+                .setSoTimeout(timeout)
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(timeout)
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+        final AtomicInteger count = new AtomicInteger();
+        this.client = HttpAsyncClients.custom()
+                .setDefaultIOReactorConfig(reactorConfig)
+                .setDefaultRequestConfig(requestConfig)
+                .setMaxConnTotal(maxInFlight)
+                .setMaxConnPerRoute(maxInFlight)
+                .setThreadFactory(r -> {
+                    Thread thread = new Thread(r, "wechat-async-io-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                .build();
+        this.tokenExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "wechat-async-token");
+            thread.setDaemon(true);
+            return thread;
+        });
+        client.start();
+    }
+
+    /**
+     * 发起请求。同时进行的请求达到上限时阻塞到有请求完成
+     *
+     * @param requestUrl    请求地址
+     * @param requestMethod GET或POST
+     * @param outputStr     请求体，可为null
+     * @return 响应
+     */
+    public CompletableFuture<JSONObject> request(String requestUrl, String requestMethod, String outputStr) {
+        CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+        if (closed.get())
+            return failed(result);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        // 关闭时会放出许可唤醒所有等待的线程
+        if (closed.get()) {
+            permits.release();
+            return failed(result);
+        }
+        HttpRequestBase request;
+        if ("POST".equalsIgnoreCase(requestMethod)) {
+            HttpPost post = new HttpPost(requestUrl);
+            if (null != outputStr) {
+                StringEntity entity = new StringEntity(outputStr, "UTF-8");
+                entity.setContentType("application/json");
+                post.setEntity(entity);
+            }
+            request = post;
+        } else {
+            request = new HttpGet(requestUrl);
+        }
+        // 地址中含有access_token或secret，只记录路径
+        final String path = StringUtils.substringBefore(requestUrl, "?");
+        try {
+            client.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    permits.release();
+                    try {
+                        result.complete(parse(response));
+                    } catch (IOException | JSONException e) {
+                        log.error("微信接口响应异常 {}", path, e);
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    permits.release();
+                    log.error("请求微信接口失败 {} {}", requestMethod, path, e);
+                    result.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    permits.release();
+                    result.cancel(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 客户端已关闭
+            permits.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * 发起携带access_token的请求，url中的ACCESS_TOKEN替换为tokens提供的凭证。
+     * 返回40001/40014/42001时作废该凭证，等待一次统一的刷新后重试一次
+     *
+     * @param requestUrl    含ACCESS_TOKEN占位符的地址
+     * @param requestMethod 请求方式
+     * @param outputStr     请求体
+     * @param tokens        access_token管理
+     * @return 响应
+     */
+    public CompletableFuture<JSONObject> request(String requestUrl, String requestMethod, String outputStr, AccessTokenManager tokens) {
+        return token(tokens).thenCompose(accessToken ->
+                request(requestUrl.replace("ACCESS_TOKEN", accessToken), requestMethod, outputStr).thenCompose(json -> {
+                    if (null == json || !AccessTokenManager.isTokenError(json.getIntValue("errcode")))
+                        return CompletableFuture.completedFuture(json);
+                    log.warn("access_token失效，刷新后重试 errcode:{} errmsg:{}", json.getIntValue("errcode"), json.getString("errmsg"));
+                    // 刷新和重试都在刷新线程上进行，重试可能因背压阻塞，不能占用IO线程
+                    return supplyAsync(() -> {
+                        String renewed;
+                        try {
+                            renewed = tokens.renew(accessToken);
+                        } catch (RuntimeException e) {
+                            log.error("刷新access_token失败", e);
+                            return CompletableFuture.completedFuture(json);
+                        }
+                        return request(requestUrl.replace("ACCESS_TOKEN", renewed), requestMethod, outputStr);
+                    }).thenCompose(future -> future);
+                }));
+    }
+
+    // 缓存中有可用凭证时直接使用，否则在刷新线程上等待，不占用调用方或IO线程
+    private CompletableFuture<String> token(AccessTokenManager tokens) {
+        String cached = tokens.getCachedToken();
+        if (null != cached)
+            return CompletableFuture.completedFuture(cached);
+        return supplyAsync(tokens::getToken);
+    }
+
+    // 在刷新线程上执行，关闭后提交被拒绝时以异常结束future，而不是在调用方抛出
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, tokenExecutor);
+        } catch (RejectedExecutionException e) {
+            return failed(new CompletableFuture<T>());
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(CompletableFuture<T> future) {
+        future.completeExceptionally(new IllegalStateException("WeixinAsyncClient已关闭"));
+        return future;
+    }
+
+    private static JSONObject parse(HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status < 200 || status >= 300) {
+            EntityUtils.consumeQuietly(entity);
+            throw new ClientProtocolException("Unexpected response status: " + status);
+        }
+        return null == entity ? null : JSONObject.parseObject(EntityUtils.toString(entity, "UTF-8"));
+    }
+
+    /**
+     * 获取access_token
+     *
+     * @param appid     凭证
+     * @param appsecret 密钥
+     * @return access_token，接口返回错误时为null
+     */
+    public CompletableFuture<AccessToken> getAccessToken(String appid, String appsecret) {
+        String requestUrl = WeixinUtil.access_token_url.replace("APPID", appid).replace("APPSECRET", appsecret);
+        long requestTime = System.currentTimeMillis();
+        return request(requestUrl, "GET", null).thenApply(json -> WeixinUtil.accessTokenResult(json, requestTime));
+    }
+
+    /**
+     * 创建菜单
+     *
+     * @param menu   菜单实例
+     * @param tokens access_token管理
+     * @return 0表示成功，其他值表示失败
+     */
+    public CompletableFuture<Integer> createMenu(Menu menu, AccessTokenManager tokens) {
+        return request(WeixinUtil.menu_create_url, "POST", JSONObject.toJSONString(menu), tokens)
+                .thenApply(WeixinUtil::createMenuResult);
+    }
+
+    /**
+     * 发送客服消息
+     *
+     * @param message 回复消息，接收方为ToUserName
+     * @param tokens  access_token管理
+     * @return 0表示成功，其他值表示失败
+     */
+    public CompletableFuture<Integer> sendCustomMessage(BaseMessage message, AccessTokenManager tokens) {
+        JSONObject customMessage = WeixinUtil.toCustomMessage(message);
+        if (null == customMessage) {
+            log.error("不支持以客服消息发送 {}", message.getClass().getName());
+            return CompletableFuture.completedFuture(-1);
+        }
+        return request(WeixinUtil.custom_send_url, "POST", customMessage.toJSONString(), tokens)
+                .thenApply(WeixinUtil::sendCustomMessageResult);
+    }
+
+    /**
+     * 获取jsapi_ticket
+     *
+     * @param tokens access_token管理
+     * @return jsapi_ticket，失败时为空串
+     */
+    public CompletableFuture<String> getJsapiTicket(AccessTokenManager tokens) {
+        return request(WeixinUtil.jsapi_ticket_url, "GET", null, tokens).thenApply(json -> {
+            String ticket = null == json ? null : json.getString("ticket");
+            return null == ticket ? "" : ticket;
+        });
+    }
+
+    /**
+     * 获取用户信息
+     *
+     * @param tokens access_token管理
+     * @param openId 用户标识
+     * @return 用户信息，接口返回错误时为null
+     */
+    public CompletableFuture<WeixinUserInfo> getUserInfo(AccessTokenManager tokens, String openId) {
+        return request(WeixinUtil.user_info_url.replace("OPENID", openId), "GET", null, tokens)
+                .thenApply(WeixinUtil::userInfoResult);
+    }
+
+    /**
+     * 批量获取用户信息，请求并发发出，受同时进行的请求数上限约束
+     *
+     * @param tokens  access_token管理
+     * @param openIds 用户标识
+     * @return 与openIds顺序一致的用户信息，单个获取失败的位置为null
+     */
+    public CompletableFuture<List<WeixinUserInfo>> getUserInfos(AccessTokenManager tokens, Collection<String> openIds) {
+        List<CompletableFuture<WeixinUserInfo>> futures = new ArrayList<CompletableFuture<WeixinUserInfo>>(openIds.size());
+        for (String openId : openIds)
+            futures.add(getUserInfo(tokens, openId).exceptionally(e -> null));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<WeixinUserInfo> users = new ArrayList<WeixinUserInfo>(futures.size());
+            for (CompletableFuture<WeixinUserInfo> future : futures)
+                users.add(future.join());
+            return users;
+        });
+    }
+
+    /**
+     * 获取网页授权凭证
+     *
+     * @param appId     公众账号的唯一标识
+     * @param appSecret 公众账号的密钥
+     * @param code      授权回调带回的code
+     * @return 网页授权凭证，接口返回错误时为null
+     */
+    public CompletableFuture<WeixinOauth2Token> getOauth2AccessToken(String appId, String appSecret, String code) {
+        String requestUrl = WeixinUtil.oauth2_access_token_url.replace("APPID", appId).replace("SECRET", appSecret).replace("CODE", code);
+        long requestTime = System.currentTimeMillis();
+        return request(requestUrl, "GET", null).thenApply(json -> WeixinUtil.oauth2TokenResult(json, requestTime));
+    }
+
+    /**
+     * 使用refresh_token刷新网页授权凭证
+     *
+     * @param appId        公众账号的唯一标识
+     * @param refreshToken 获取网页授权凭证时返回的refresh_token
+     * @return 网页授权凭证，refresh_token失效时为null
+     */
+    public CompletableFuture<WeixinOauth2Token> refreshOauth2AccessToken(String appId, String refreshToken) {
+        String requestUrl = WeixinUtil.oauth2_refresh_url.replace("APPID", appId).replace("REFRESH_TOKEN", refreshToken);
+        long requestTime = System.currentTimeMillis();
+        return request(requestUrl, "GET", null).thenApply(json -> WeixinUtil.oauth2TokenResult(json, requestTime));
+    }
+
+    /**
+     * 通过网页授权获取用户信息
+     *
+     * @param accessToken 网页授权接口调用凭证
+     * @param openId      用户标识
+     * @return 用户信息，接口返回错误时为null
+     */
+    public CompletableFuture<SNSUserInfo> getSNSUserInfo(String accessToken, String openId) {
+        String requestUrl = WeixinUtil.sns_user_info_url.replace("ACCESS_TOKEN", accessToken).replace("OPENID", openId);
+        return request(requestUrl, "GET", null).thenApply(WeixinUtil::snsUserInfoResult);
+    }
+
+    /**
+     * @return 正在进行的请求数
+     */
+    public int getInFlight() {
+        return Math.max(0, maxInFlight - permits.availablePermits());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true))
+            return;
+        // 唤醒因背压阻塞的线程，它们醒来后看到已关闭即结束自己的future
+        permits.release(Integer.MAX_VALUE / 2);
+        tokenExecutor.shutdown();
+        client.close();
+    }
+}
@@ -4,20 +4,15 @@ import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONException;
 import com.alibaba.fastjson.JSONObject;
 import com.evan.wechat.menu.Menu;
+import com.evan.wechat.message.resp.*;
 import com.evan.wechat.model.*;
+import com.evan.wechat.token.AccessTokenManager;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import java.io.*;
-import java.net.ConnectException;
-import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.*;
 
 
@@ -31,6 +26,24 @@ public class WeixinUtil {
     // 菜单创建
     public static String menu_create_url = "https://api.weixin.qq.com/cgi-bin/menu/create?access_token=ACCESS_TOKEN";
 
+    // 客服消息发送
+    public static String custom_send_url = "https://api.weixin.qq.com/cgi-bin/message/custom/send?access_token=ACCESS_TOKEN";
+
+    // 获取jsapi_ticket
+    public static String jsapi_ticket_url = "https://api.weixin.qq.com/cgi-bin/ticket/getticket?access_token=ACCESS_TOKEN&type=jsapi";
+
+    // 获取网页授权凭证
+    public static String oauth2_access_token_url = "https://api.weixin.qq.com/sns/oauth2/access_token?appid=APPID&secret=SECRET&code=CODE&grant_type=authorization_code";
+
+    // 刷新网页授权凭证
+    public static String oauth2_refresh_url = "https://api.weixin.qq.com/sns/oauth2/refresh_token?appid=APPID&grant_type=refresh_token&refresh_token=REFRESH_TOKEN";
+
+    // 通过网页授权获取用户信息
+    public static String sns_user_info_url = "https://api.weixin.qq.com/sns/userinfo?access_token=ACCESS_TOKEN&openid=OPENID";
+
+    // 获取用户信息
+    public static String user_info_url = "https://api.weixin.qq.com/cgi-bin/model/info?access_token=ACCESS_TOKEN&openid=OPENID";
+
 
     /**
      * 创建菜单
@@ -40,13 +53,27 @@ public class WeixinUtil {
      * @return 0表示成功，其他值表示失败
      */
     public static int createMenu(Menu menu, String accessToken) {
-        int result = 0;
         // 拼装创建菜单的url
         String url = menu_create_url.replace("ACCESS_TOKEN", accessToken);
         // 将菜单对象转换成json字符串
         String jsonMenu = JSONObject.toJSONString(menu);
         // 调用接口创建菜单
-        JSONObject jsonObject = httpsRequest(url, "POST", jsonMenu);
+        return createMenuResult(httpsRequest(url, "POST", jsonMenu));
+    }
+
+    /**
+     * 创建菜单，access_token失效时刷新后重试一次
+     *
+     * @param menu   菜单实例
+     * @param tokens access_token管理
+     * @return 0表示成功，其他值表示失败
+     */
+    public static int createMenu(Menu menu, AccessTokenManager tokens) {
+        return createMenuResult(httpsRequest(menu_create_url, "POST", JSONObject.toJSONString(menu), tokens));
+    }
+
+    static int createMenuResult(JSONObject jsonObject) {
+        int result = 0;
         if (null != jsonObject) {
             if (0 != jsonObject.getIntValue("errcode")) {
                 result = jsonObject.getIntValue("errcode");
@@ -58,6 +85,104 @@ public class WeixinUtil {
     }
 
 
+    /**
+     * 发送客服消息，用于被动回复超时后补发
+     *
+     * @param message     回复消息，接收方为ToUserName；支持文本、图片、语音、视频、音乐、图文
+     * @param accessToken 有效的access_token
+     * @return 0表示成功，其他值表示失败
+     */
+    public static int sendCustomMessage(BaseMessage message, String accessToken) {
+        JSONObject customMessage = toCustomMessage(message);
+        if (null == customMessage) {
+            log.error("不支持以客服消息发送 {}", message.getClass().getName());
+            return -1;
+        }
+        String url = custom_send_url.replace("ACCESS_TOKEN", accessToken);
+        return sendCustomMessageResult(httpsRequest(url, "POST", customMessage.toJSONString()));
+    }
+
+    /**
+     * 发送客服消息，access_token失效时刷新后重试一次
+     *
+     * @param message 回复消息，接收方为ToUserName
+     * @param tokens  access_token管理
+     * @return 0表示成功，其他值表示失败
+     */
+    public static int sendCustomMessage(BaseMessage message, AccessTokenManager tokens) {
+        JSONObject customMessage = toCustomMessage(message);
+        if (null == customMessage) {
+            log.error("不支持以客服消息发送 {}", message.getClass().getName());
+            return -1;
+        }
+        return sendCustomMessageResult(httpsRequest(custom_send_url, "POST", customMessage.toJSONString(), tokens));
+    }
+
+    static int sendCustomMessageResult(JSONObject jsonObject) {
+        if (null == jsonObject)
+            return -1;
+        int errcode = jsonObject.getIntValue("errcode");
+        if (0 != errcode)
+            log.error("发送客服消息失败 errcode:{} errmsg:{}", errcode, jsonObject.getString("errmsg"));
+        return errcode;
+    }
+
+    /**
+     * 把被动回复转换为客服消息的JSON
+     *
+     * @param message 回复消息
+     * @return 客服消息，不支持的类型返回null
+     */
+    static JSONObject toCustomMessage(BaseMessage message) {
+        String toUser = message.getToUserName();
+        if (message instanceof ReplyTemplate.Reply)
+            message = ((ReplyTemplate.Reply) message).getTemplate().getPrototype();
+        JSONObject json = new JSONObject();
+        json.put("touser", toUser);
+        JSONObject body = new JSONObject();
+        String msgType;
+        if (message instanceof TextMessage) {
+            msgType = "text";
+            body.put("content", ((TextMessage) message).getContent());
+        } else if (message instanceof ImageMessage) {
+            msgType = "image";
+            body.put("media_id", ((ImageMessage) message).getImage().getMediaId());
+        } else if (message instanceof VoiceMessage) {
+            msgType = "voice";
+            body.put("media_id", ((VoiceMessage) message).getVoice().getMediaId());
+        } else if (message instanceof VideoMessage) {
+            msgType = "video";
+            Video video = ((VideoMessage) message).getVideo();
+            body.put("media_id", video.getMediaId());
+            body.put("thumb_media_id", video.getThumbMediaId());
+        } else if (message instanceof MusicMessage) {
+            msgType = "music";
+            Music music = ((MusicMessage) message).getMusic();
+            body.put("title", music.getTitle());
+            body.put("description", music.getDescription());
+            body.put("musicurl", music.getMusicUrl());
+            body.put("hqmusicurl", music.getHQMusicUrl());
+            body.put("thumb_media_id", music.getThumbMediaId());
+        } else if (message instanceof NewsMessage) {
+            msgType = "news";
+            JSONArray articles = new JSONArray();
+            for (Article article : ((NewsMessage) message).getArticles()) {
+                JSONObject item = new JSONObject();
+                item.put("title", article.getTitle());
+                item.put("description", article.getDescription());
+                item.put("url", article.getUrl());
+                item.put("picurl", article.getPicUrl());
+                articles.add(item);
+            }
+            body.put("articles", articles);
+        } else {
+            return null;
+        }
+        json.put("msgtype", msgType);
+        json.put(msgType, body);
+        return json;
+    }
+
     /**
      * 获取access_token
      *
@@ -66,15 +191,21 @@ public class WeixinUtil {
      * @return
      */
     public static AccessToken getAccessToken(String appid, String appsecret) {
-        AccessToken accessToken = null;
         String requestUrl = access_token_url.replace("APPID", appid).replace("APPSECRET", appsecret);
-        JSONObject jsonObject = httpsRequest(requestUrl, "GET", null);
+        // 以发出请求的时间计算过期时间点，宁早勿晚
+        long requestTime = System.currentTimeMillis();
+        return accessTokenResult(httpsRequest(requestUrl, "GET", null), requestTime);
+    }
+
+    static AccessToken accessTokenResult(JSONObject jsonObject, long requestTime) {
+        AccessToken accessToken = null;
         // 如果请求成功
         if (null != jsonObject) {
             try {
                 accessToken = new AccessToken();
                 accessToken.setToken(jsonObject.getString("access_token"));
                 accessToken.setExpiresIn(jsonObject.getIntValue("expires_in"));
+                accessToken.setExpiresAt(requestTime + accessToken.getExpiresIn() * 1000L);
             } catch (JSONException e) {
                 accessToken = null;
                 // 获取token失败
@@ -93,28 +224,51 @@ public class WeixinUtil {
      * @return WeixinAouth2Token
      */
     public static WeixinOauth2Token getOauth2AccessToken(String appId, String appSecret, String code) {
-        WeixinOauth2Token wat = null;
         // 拼接请求地址
-        String requestUrl = "https://api.weixin.qq.com/sns/oauth2/access_token?appid=APPID&secret=SECRET&code=CODE&grant_type=authorization_code";
-        requestUrl = requestUrl.replace("APPID", appId);
+        String requestUrl = oauth2_access_token_url.replace("APPID", appId);
         requestUrl = requestUrl.replace("SECRET", appSecret);
         requestUrl = requestUrl.replace("CODE", code);
+        long requestTime = System.currentTimeMillis();
         // 获取网页授权凭证
-        JSONObject jsonObject = httpsRequest(requestUrl, "GET", null);
+        return oauth2TokenResult(httpsRequest(requestUrl, "GET", null), requestTime);
+    }
+
+    /**
+     * 使用refresh_token刷新网页授权凭证，refresh_token有效期30天，期间无需用户重新授权
+     *
+     * @param appId        公众账号的唯一标识
+     * @param refreshToken 获取网页授权凭证时返回的refresh_token
+     * @return WeixinOauth2Token，请求失败或refresh_token失效时返回null
+     */
+    public static WeixinOauth2Token refreshOauth2AccessToken(String appId, String refreshToken) {
+        String requestUrl = oauth2_refresh_url.replace("APPID", appId).replace("REFRESH_TOKEN", refreshToken);
+        long requestTime = System.currentTimeMillis();
+        return oauth2TokenResult(httpsRequest(requestUrl, "GET", null), requestTime);
+    }
+
+    /**
+     * 解析换取或刷新网页授权凭证的返回结果
+     *
+     * @param jsonObject  接口返回的JSON，请求失败时为null
+     * @param requestTime 发出请求的时间，用于计算过期时间点
+     * @return WeixinOauth2Token，请求失败或微信返回错误码时返回null
+     */
+    public static WeixinOauth2Token oauth2TokenResult(JSONObject jsonObject, long requestTime) {
+        WeixinOauth2Token wat = null;
         if (null != jsonObject) {
-            try {
-                wat = new WeixinOauth2Token();
-                wat.setAccessToken(jsonObject.getString("access_token"));
-                wat.setExpiresIn(jsonObject.getIntValue("expires_in"));
-                wat.setRefreshToken(jsonObject.getString("refresh_token"));
-                wat.setOpenId(jsonObject.getString("openid"));
-                wat.setScope(jsonObject.getString("scope"));
-            } catch (Exception e) {
-                wat = null;
+            if (null == jsonObject.getString("access_token")) {
                 int errorCode = jsonObject.getIntValue("errcode");
                 String errorMsg = jsonObject.getString("errmsg");
                 log.error("获取网页授权凭证失败 errcode:{} errmsg:{}", errorCode, errorMsg);
+                return null;
             }
+            wat = new WeixinOauth2Token();
+            wat.setAccessToken(jsonObject.getString("access_token"));
+            wat.setExpiresIn(jsonObject.getIntValue("expires_in"));
+            wat.setExpiresAt(requestTime + wat.getExpiresIn() * 1000L);
+            wat.setRefreshToken(jsonObject.getString("refresh_token"));
+            wat.setOpenId(jsonObject.getString("openid"));
+            wat.setScope(jsonObject.getString("scope"));
         }
         return wat;
     }
@@ -129,13 +283,14 @@ public class WeixinUtil {
      */
     @SuppressWarnings({"deprecation", "unchecked"})
     public static SNSUserInfo getSNSUserInfo(String accessToken, String openId) {
-        SNSUserInfo snsUserInfo = null;
         // 拼接请求地址
-        String requestUrl = "https://api.weixin.qq.com/sns/userinfo?access_token=ACCESS_TOKEN&openid=OPENID";
-        requestUrl = requestUrl.replace("ACCESS_TOKEN", accessToken).replace("OPENID", openId);
+        String requestUrl = sns_user_info_url.replace("ACCESS_TOKEN", accessToken).replace("OPENID", openId);
         // 通过网页授权获取用户信息
-        JSONObject jsonObject = httpsRequest(requestUrl, "GET", null);
+        return snsUserInfoResult(httpsRequest(requestUrl, "GET", null, true));
+    }
 
+    static SNSUserInfo snsUserInfoResult(JSONObject jsonObject) {
+        SNSUserInfo snsUserInfo = null;
         if (null != jsonObject) {
             try {
                 snsUserInfo = new SNSUserInfo();
@@ -172,54 +327,67 @@ public class WeixinUtil {
 
 
     /**
+     * 发起请求，经由HttpRequestUtil共享的连接池，连接保持长连接并复用TLS会话
+     *
      * @param requestUrl
      * @param requestMethod
      * @param outputStr
-     * @return
+     * @return 响应，请求失败时返回null
      */
     public static JSONObject httpsRequest(String requestUrl, String requestMethod, String outputStr) {
+        return httpsRequest(requestUrl, requestMethod, outputStr, false);
+    }
+
+    // hedged为true时为幂等的GET，可发出对冲请求
+    private static JSONObject httpsRequest(String requestUrl, String requestMethod, String outputStr, boolean hedged) {
         JSONObject jsonObject = null;
-        StringBuffer buffer = new StringBuffer();
         try {
-            TrustManager[] tm = {new MyX509TrustManager()};
-            SSLContext sslContext = SSLContext.getInstance("SSL", "SunJSSE");
-            sslContext.init(null, tm, new java.security.SecureRandom());
-            SSLSocketFactory ssf = sslContext.getSocketFactory();
-            URL url = new URL(requestUrl);
-            HttpsURLConnection httpUrlConn = (HttpsURLConnection) url.openConnection();
-            httpUrlConn.setSSLSocketFactory(ssf);
-            httpUrlConn.setDoOutput(true);
-            httpUrlConn.setDoInput(true);
-            httpUrlConn.setUseCaches(false);
-            httpUrlConn.setRequestMethod(requestMethod);
-            if ("GET".equalsIgnoreCase(requestMethod))
-                httpUrlConn.connect();
-            if (null != outputStr) {
-                OutputStream outputStream = httpUrlConn.getOutputStream();
-                outputStream.write(outputStr.getBytes("UTF-8"));
-                outputStream.close();
-            }
-            InputStream inputStream = httpUrlConn.getInputStream();
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, "utf-8");
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-            String str = null;
-            while ((str = bufferedReader.readLine()) != null) {
-                buffer.append(str);
-            }
-            bufferedReader.close();
-            inputStreamReader.close();
-            inputStream.close();
-            inputStream = null;
-            httpUrlConn.disconnect();
-            jsonObject = JSONObject.parseObject(buffer.toString());
-        } catch (ConnectException ce) {
-            ce.printStackTrace();
-        } catch (Exception e) {
-            e.printStackTrace();
+            String response = hedged ? HttpRequestUtil.executeHedged(requestUrl)
+                    : HttpRequestUtil.execute(requestUrl, requestMethod, outputStr);
+            if (null != response)
+                jsonObject = JSONObject.parseObject(response);
+        } catch (CircuitOpenException | BulkheadFullException e) {
+            // 请求未发出，不记录堆栈
+            log.warn("微信接口暂不可用 {}", e.getMessage());
+        } catch (IOException e) {
+            // 地址中含有access_token或secret，只记录路径
+            log.error("请求微信接口失败 {} {}", requestMethod, StringUtils.substringBefore(requestUrl, "?"), e);
+        } catch (JSONException e) {
+            log.error("微信接口返回的内容不是JSON {}", StringUtils.substringBefore(requestUrl, "?"), e);
         }
         return jsonObject;
     }
 
+    /**
+     * 发起携带access_token的请求，url中的ACCESS_TOKEN替换为tokens提供的凭证。
+     * 返回40001/40014/42001（凭证无效或过期）时作废该凭证，等待一次统一的刷新后重试一次
+     *
+     * @param requestUrl    含ACCESS_TOKEN占位符的地址
+     * @param requestMethod 请求方式
+     * @param outputStr     请求体
+     * @param tokens        access_token管理
+     * @return 响应，请求失败时返回null
+     */
+    public static JSONObject httpsRequest(String requestUrl, String requestMethod, String outputStr, AccessTokenManager tokens) {
+        return httpsRequest(requestUrl, requestMethod, outputStr, tokens, false);
+    }
+
+    private static JSONObject httpsRequest(String requestUrl, String requestMethod, String outputStr, AccessTokenManager tokens, boolean hedged) {
+        String accessToken = tokens.getToken();
+        JSONObject jsonObject = httpsRequest(requestUrl.replace("ACCESS_TOKEN", accessToken), requestMethod, outputStr, hedged);
+        if (null == jsonObject || !AccessTokenManager.isTokenError(jsonObject.getIntValue("errcode")))
+            return jsonObject;
+        log.warn("access_token失效，刷新后重试 errcode:{} errmsg:{}", jsonObject.getIntValue("errcode"), jsonObject.getString("errmsg"));
+        String renewed;
+        try {
+            renewed = tokens.renew(accessToken);
+        } catch (RuntimeException e) {
+            log.error("刷新access_token失败", e);
+            return jsonObject;
+        }
+        return httpsRequest(requestUrl.replace("ACCESS_TOKEN", renewed), requestMethod, outputStr, hedged);
+    }
+
     /**
      * @param accessToken
      * @return
@@ -227,7 +395,7 @@ public class WeixinUtil {
     public static String getJsapiTicket(String accessToken) {
         String jsapi_ticket = "";
         if (!StringUtils.isEmpty(accessToken)) {
-            String url = "https://api.weixin.qq.com/cgi-bin/ticket/getticket?access_token=" + accessToken + "&type=jsapi";
+            String url = jsapi_ticket_url.replace("ACCESS_TOKEN", accessToken);
             JSONObject json = WeixinUtil.httpsRequest(url, "GET", null);
             if (json != null) {
                 jsapi_ticket = json.getString("ticket");
@@ -236,6 +404,18 @@ public class WeixinUtil {
         return jsapi_ticket;
     }
 
+    /**
+     * 获取jsapi_ticket，access_token失效时刷新后重试一次
+     *
+     * @param tokens access_token管理
+     * @return jsapi_ticket，失败时返回空串
+     */
+    public static String getJsapiTicket(AccessTokenManager tokens) {
+        JSONObject json = httpsRequest(jsapi_ticket_url, "GET", null, tokens);
+        String jsapi_ticket = null == json ? null : json.getString("ticket");
+        return null == jsapi_ticket ? "" : jsapi_ticket;
+    }
+
     /**
      * @param requestUrl
      * @param appId
@@ -246,20 +426,10 @@ public class WeixinUtil {
         Map<String, Object> ret = new HashMap<String, Object>();
 
         String timestamp = Long.toString(System.currentTimeMillis() / 1000); // 必填，生成签名的时间戳
-        String nonceStr = UUID.randomUUID().toString(); // 必填，生成签名的随机串
-        String signature = "";
-        // 注意这里参数名必须全部小写，且必须有序
-        String sign = "jsapi_ticket=" + jsapi_ticket + "&noncestr=" + nonceStr + "&timestamp=" + timestamp + "&url=" + requestUrl;
-        try {
-            MessageDigest crypt = MessageDigest.getInstance("SHA-1");
-            crypt.reset();
-            crypt.update(sign.getBytes("UTF-8"));
-            signature = byteToHex(crypt.digest());
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
+        String nonceStr = SignatureUtil.nonceStr(); // 必填，生成签名的随机串
+        // 参数按jsapi_ticket、noncestr、timestamp、url的顺序签名，缺少参数时签名为空串
+        String signature = null == jsapi_ticket || null == requestUrl ? ""
+                : SignatureUtil.jsapiSignature(jsapi_ticket, nonceStr, timestamp, requestUrl);
         ret.put("appId", appId);
         ret.put("jsapi_ticket", jsapi_ticket);
         ret.put("timestamp", timestamp);
@@ -268,22 +438,6 @@ public class WeixinUtil {
         return ret;
     }
 
-    /**
-     * @param hash
-     * @return
-     */
-    private static String byteToHex(final byte[] hash) {
-        Formatter formatter = new Formatter();
-        for (byte b : hash) {
-            formatter.format("%02x", b);
-        }
-        String result = formatter.toString();
-        formatter.close();
-        return result;
-
-    }
-
-
     /**
      * URL编码（utf-8）
      *
@@ -308,13 +462,25 @@ public class WeixinUtil {
      * @return WeixinUserInfo
      */
     public static WeixinUserInfo getUserInfo(String accessToken, String openId) {
-        WeixinUserInfo weixinUserInfo = null;
         // 拼接请求地址
-        String requestUrl = "https://api.weixin.qq.com/cgi-bin/model/info?access_token=ACCESS_TOKEN&openid=OPENID";
-        requestUrl = requestUrl.replace("ACCESS_TOKEN", accessToken).replace("OPENID", openId);
+        String requestUrl = user_info_url.replace("ACCESS_TOKEN", accessToken).replace("OPENID", openId);
         // 获取用户信息
-        JSONObject jsonObject = httpsRequest(requestUrl, "GET", null);
+        return userInfoResult(httpsRequest(requestUrl, "GET", null, true));
+    }
 
+    /**
+     * 获取用户信息，access_token失效时刷新后重试一次
+     *
+     * @param tokens access_token管理
+     * @param openId 用户标识
+     * @return WeixinUserInfo
+     */
+    public static WeixinUserInfo getUserInfo(AccessTokenManager tokens, String openId) {
+        return userInfoResult(httpsRequest(user_info_url.replace("OPENID", openId), "GET", null, tokens, true));
+    }
+
+    static WeixinUserInfo userInfoResult(JSONObject jsonObject) {
+        WeixinUserInfo weixinUserInfo = null;
         if (null != jsonObject) {
             try {
                 weixinUserInfo = new WeixinUserInfo();
@@ -0,0 +1,599 @@
+package com.evan.wechat.utils;
+
+import com.evan.wechat.event.EventType;
+import com.evan.wechat.message.MsgType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 微信回调XML的字节级扫描结果
+ * <p>
+ * 微信推送的消息都是扁平的 &lt;xml&gt; 文档，子节点固定且大多以CDATA包裹。扫描时只在原始字节上记录
+ * 每个子节点名称与取值的偏移量，不创建任何字符串；只有调用 {@link #get(String)} 等方法读取某个字段时，
+ * 才把该字段解码为String并缓存。例如只读取MsgType、FromUserName时，Content永远不会被解码。
+ * <p>
+ * 实例可通过 {@link #reset(byte[], int, int)} 重复使用，非线程安全。
+ */
+public class XmlMessage {
+
+    // 取值为普通文本，无实体引用，可直接按UTF-8解码
+    private static final byte KIND_TEXT = 0;
+    // 取值为单个CDATA段，偏移量已指向CDATA内部
+    private static final byte KIND_CDATA = 1;
+    // 取值含实体引用、多个CDATA段或嵌套节点，读取时需要完整解码
+    private static final byte KIND_COMPLEX = 2;
+
+    private static final byte[] CDATA_START = {'<', '!', '[', 'C', 'D', 'A', 'T', 'A', '['};
+    private static final byte[] CDATA_END = {']', ']', '>'};
+    private static final byte[] COMMENT_END = {'-', '-', '>'};
+
+    private byte[] data;
+    private int limit;
+    // 是否已复制底层字节
+    private boolean detached;
+
+    private int size;
+    private int[] nameStart = new int[16];
+    private int[] nameEnd = new int[16];
+    private int[] valueStart = new int[16];
+    private int[] valueEnd = new int[16];
+    private byte[] kinds = new byte[16];
+    private String[] values = new String[16];
+
+    // 已识别的消息类型、事件类型
+    private MsgType msgType;
+    private EventType eventType;
+
+    /**
+     * 扫描整个字节数组
+     *
+     * @param data 请求体
+     * @return XmlMessage
+     */
+    public static XmlMessage scan(byte[] data) {
+        return new XmlMessage().reset(data, 0, data.length);
+    }
+
+    /**
+     * 扫描字节数组的一段
+     *
+     * @param data   请求体
+     * @param offset 起始位置
+     * @param length 长度
+     * @return XmlMessage
+     */
+    public static XmlMessage scan(byte[] data, int offset, int length) {
+        return new XmlMessage().reset(data, offset, length);
+    }
+
+    /**
+     * 扫描ByteBuffer中剩余的字节，堆内缓冲区直接使用其底层数组，不复制
+     *
+     * @param buffer 请求体
+     * @return XmlMessage
+     */
+    public static XmlMessage scan(ByteBuffer buffer) {
+        if (buffer.hasArray())
+            return scan(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return scan(copy);
+    }
+
+    /**
+     * 重新扫描一段字节，复用当前实例的偏移量数组
+     *
+     * @param data   请求体
+     * @param offset 起始位置
+     * @param length 长度
+     * @return this
+     */
+    public XmlMessage reset(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", size " + data.length);
+        Arrays.fill(values, 0, size, null);
+        this.data = data;
+        this.limit = offset + length;
+        this.detached = false;
+        this.size = 0;
+        this.msgType = null;
+        this.eventType = null;
+        scanRoot(offset);
+        return this;
+    }
+
+    /**
+     * 复制底层字节，之后不再引用扫描时传入的数组。请求体来自缓冲池、而消息要在回调返回后继续使用时调用，
+     * 已复制过时不再复制
+     *
+     * @return this
+     */
+    public XmlMessage detach() {
+        if (!detached) {
+            this.data = Arrays.copyOf(data, limit);
+            this.detached = true;
+        }
+        return this;
+    }
+
+    private void scanRoot(int pos) {
+        // 跳过XML声明、注释，找到根元素
+        while (true) {
+            pos = indexOf((byte) '<', pos);
+            if (pos < 0)
+                throw malformed("缺少根元素", limit);
+            if (startsWith(pos, "<?")) {
+                pos = skipTo("?>", pos + 2);
+            } else if (startsWith(pos, "<!--")) {
+                pos = skipTo(COMMENT_END, pos + 4);
+            } else if (startsWith(pos, "<!")) {
+                pos = skipTo(">", pos + 2);
+            } else {
+                break;
+            }
+        }
+        int rootEnd = indexOf((byte) '>', pos);
+        if (rootEnd < 0)
+            throw malformed("根元素未闭合", pos);
+        if ('/' == data[rootEnd - 1])
+            return;
+        pos = rootEnd + 1;
+
+        while (true) {
+            pos = indexOf((byte) '<', pos);
+            if (pos < 0)
+                throw malformed("根元素未闭合", limit);
+            if (startsWith(pos, "</"))
+                return;
+            if (startsWith(pos, "<!--")) {
+                pos = skipTo(COMMENT_END, pos + 4);
+                continue;
+            }
+            pos = scanElement(pos);
+        }
+    }
+
+    /**
+     * 扫描根元素下的一个子节点，返回节点结束后的位置
+     */
+    private int scanElement(int pos) {
+        int nStart = pos + 1;
+        int nEnd = nStart;
+        while (nEnd < limit && !isNameEnd(data[nEnd]))
+            nEnd++;
+        int tagEnd = indexOf((byte) '>', nEnd);
+        if (tagEnd < 0 || nEnd == nStart)
+            throw malformed("子节点不完整", pos);
+        if ('/' == data[tagEnd - 1]) {
+            add(nStart, nEnd, tagEnd + 1, tagEnd + 1, KIND_TEXT);
+            return tagEnd + 1;
+        }
+
+        int vStart = tagEnd + 1;
+        int cdataCount = 0;
+        int cdataStart = 0;
+        int cdataEnd = 0;
+        boolean entity = false;
+        boolean nested = false;
+        int depth = 0;
+        int p = vStart;
+        while (true) {
+            if (p >= limit)
+                throw malformed("子节点未闭合", pos);
+            byte b = data[p];
+            if ('<' != b) {
+                if ('&' == b)
+                    entity = true;
+                p++;
+            } else if (startsWith(p, CDATA_START)) {
+                cdataCount++;
+                cdataStart = p + CDATA_START.length;
+                cdataEnd = indexOf(CDATA_END, cdataStart);
+                if (cdataEnd < 0)
+                    throw malformed("CDATA未闭合", p);
+                p = cdataEnd + CDATA_END.length;
+            } else if (startsWith(p, "</")) {
+                if (0 == depth) {
+                    if (0 == cdataCount && !entity && !nested)
+                        add(nStart, nEnd, vStart, p, KIND_TEXT);
+                    else if (1 == cdataCount && !entity && !nested && !isOtherText(vStart, p, cdataStart, cdataEnd))
+                        add(nStart, nEnd, cdataStart, cdataEnd, KIND_CDATA);
+                    else
+                        add(nStart, nEnd, vStart, p, KIND_COMPLEX);
+                    return skipTo(">", p + 2);
+                }
+                depth--;
+                p = skipTo(">", p + 2);
+            } else if (startsWith(p, "<!--")) {
+                nested = true;
+                p = skipTo(COMMENT_END, p + 4);
+            } else {
+                nested = true;
+                int end = indexOf((byte) '>', p);
+                if (end < 0)
+                    throw malformed("子节点不完整", p);
+                if ('/' != data[end - 1])
+                    depth++;
+                p = end + 1;
+            }
+        }
+    }
+
+    // 判断CDATA段之外是否还有其他字符（含空白），有则按完整方式解码以保持与DOM解析一致
+    private boolean isOtherText(int from, int to, int cdataStart, int cdataEnd) {
+        return from != cdataStart - CDATA_START.length || to != cdataEnd + CDATA_END.length;
+    }
+
+    private void add(int nStart, int nEnd, int vStart, int vEnd, byte kind) {
+        if (size == nameStart.length) {
+            int capacity = size << 1;
+            nameStart = Arrays.copyOf(nameStart, capacity);
+            nameEnd = Arrays.copyOf(nameEnd, capacity);
+            valueStart = Arrays.copyOf(valueStart, capacity);
+            valueEnd = Arrays.copyOf(valueEnd, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        nameStart[size] = nStart;
+        nameEnd[size] = nEnd;
+        valueStart[size] = vStart;
+        valueEnd[size] = vEnd;
+        kinds[size] = kind;
+        size++;
+    }
+
+    /**
+     * @return 子节点个数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 查找子节点位置，只比较字节，不创建字符串
+     *
+     * @param name 节点名（ASCII）
+     * @return 位置，不存在时返回-1
+     */
+    public int indexOf(String name) {
+        int length = name.length();
+        for (int i = 0; i < size; i++) {
+            int start = nameStart[i];
+            if (nameEnd[i] - start != length)
+                continue;
+            int j = 0;
+            while (j < length && data[start + j] == name.charAt(j))
+                j++;
+            if (j == length)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param name 节点名
+     * @return 是否存在该子节点
+     */
+    public boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * @param index 位置
+     * @return 节点名
+     */
+    public String getName(int index) {
+        checkIndex(index);
+        return new String(data, nameStart[index], nameEnd[index] - nameStart[index], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 读取子节点文本，第一次读取时解码并缓存
+     *
+     * @param index 位置
+     * @return 节点文本
+     */
+    public String getValue(int index) {
+        checkIndex(index);
+        String value = values[index];
+        if (null == value) {
+            int start = valueStart[index];
+            int length = valueEnd[index] - start;
+            if (KIND_COMPLEX == kinds[index])
+                value = decodeComplex(start, valueEnd[index]);
+            else if (KIND_TEXT == kinds[index] && 0 == length)
+                value = "";
+            else
+                value = new String(data, start, length, StandardCharsets.UTF_8);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * 读取子节点文本
+     *
+     * @param name 节点名
+     * @return 节点文本，不存在时返回null
+     */
+    public String get(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : getValue(index);
+    }
+
+    /**
+     * 直接从字节中解析整数取值，如CreateTime、MsgId
+     *
+     * @param name         节点名
+     * @param defaultValue 节点不存在或为空时的默认值
+     * @return 整数值
+     */
+    public long getLong(String name, long defaultValue) {
+        int index = indexOf(name);
+        if (index < 0)
+            return defaultValue;
+        if (KIND_COMPLEX == kinds[index]) {
+            String value = getValue(index).trim();
+            return value.isEmpty() ? defaultValue : Long.parseLong(value);
+        }
+        int start = valueStart[index];
+        int end = valueEnd[index];
+        while (start < end && isWhitespace(data[start]))
+            start++;
+        while (end > start && isWhitespace(data[end - 1]))
+            end--;
+        if (start == end)
+            return defaultValue;
+        boolean negative = '-' == data[start];
+        int p = negative ? start + 1 : start;
+        if (p == end || end - p > 19)
+            return Long.parseLong(getValue(index).trim());
+        long result = 0;
+        for (; p < end; p++) {
+            int digit = data[p] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("For input string: \"" + getValue(index) + "\"");
+            result = result * 10 + digit;
+        }
+        if (result < 0)
+            return Long.parseLong(getValue(index).trim());
+        return negative ? -result : result;
+    }
+
+    /**
+     * 比较子节点文本，ASCII取值直接按字节比较，不解码
+     *
+     * @param name     节点名
+     * @param expected 期望值
+     * @return 是否相等，节点不存在时返回false
+     */
+    public boolean valueEquals(String name, String expected) {
+        int index = indexOf(name);
+        if (index < 0)
+            return false;
+        if (KIND_COMPLEX == kinds[index] || null != values[index])
+            return expected.equals(getValue(index));
+        int start = valueStart[index];
+        int length = valueEnd[index] - start;
+        if (length != expected.length())
+            return isAscii(expected) ? false : expected.equals(getValue(index));
+        for (int i = 0; i < length; i++) {
+            char c = expected.charAt(i);
+            if (c >= 0x80)
+                return expected.equals(getValue(index));
+            if (data[start + i] != c)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 直接在字节上识别MsgType，结果会缓存
+     *
+     * @return 消息类型，缺失或未识别时返回UNKNOWN
+     */
+    public MsgType getMsgType() {
+        if (null == msgType) {
+            int index = indexOf("MsgType");
+            if (index < 0)
+                msgType = MsgType.UNKNOWN;
+            else if (KIND_COMPLEX == kinds[index])
+                msgType = MsgType.of(getValue(index).trim());
+            else
+                msgType = MsgType.of(data, valueStart[index], valueEnd[index]);
+        }
+        return msgType;
+    }
+
+    /**
+     * 直接在字节上识别Event，结果会缓存
+     *
+     * @return 事件类型，非事件消息或未识别时返回UNKNOWN
+     */
+    public EventType getEventType() {
+        if (null == eventType) {
+            int index = indexOf("Event");
+            if (index < 0)
+                eventType = EventType.UNKNOWN;
+            else if (KIND_COMPLEX == kinds[index])
+                eventType = EventType.of(getValue(index).trim());
+            else
+                eventType = EventType.of(data, valueStart[index], valueEnd[index]);
+        }
+        return eventType;
+    }
+
+    /**
+     * 转换为与parseXml相同结构的Map，会解码所有字段
+     *
+     * @return Map<String, String>
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < size; i++)
+            map.put(getName(i), getValue(i));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+    // 解码含实体引用、多个CDATA段或嵌套节点的取值，与dom4j的getText()一致只保留直接文本
+    private String decodeComplex(int start, int end) {
+        byte[] buf = new byte[end - start];
+        int n = 0;
+        int depth = 0;
+        int p = start;
+        while (p < end) {
+            byte b = data[p];
+            if ('<' == b) {
+                if (startsWith(p, CDATA_START)) {
+                    int cEnd = indexOf(CDATA_END, p + CDATA_START.length);
+                    if (0 == depth) {
+                        int length = cEnd - p - CDATA_START.length;
+                        System.arraycopy(data, p + CDATA_START.length, buf, n, length);
+                        n += length;
+                    }
+                    p = cEnd + CDATA_END.length;
+                } else if (startsWith(p, "<!--")) {
+                    p = skipTo(COMMENT_END, p + 4);
+                } else if (startsWith(p, "</")) {
+                    depth--;
+                    p = skipTo(">", p + 2);
+                } else {
+                    int tagEnd = indexOf((byte) '>', p);
+                    if ('/' != data[tagEnd - 1])
+                        depth++;
+                    p = tagEnd + 1;
+                }
+            } else if ('&' == b && 0 == depth) {
+                int semi = indexOf((byte) ';', p);
+                int ch = semi < 0 || semi >= end ? -1 : decodeEntity(p + 1, semi);
+                if (ch < 0) {
+                    buf[n++] = b;
+                    p++;
+                } else {
+                    byte[] encoded = new String(Character.toChars(ch)).getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(encoded, 0, buf, n, encoded.length);
+                    n += encoded.length;
+                    p = semi + 1;
+                }
+            } else {
+                if (0 == depth)
+                    buf[n++] = b;
+                p++;
+            }
+        }
+        return new String(buf, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private int decodeEntity(int start, int end) {
+        String entity = new String(data, start, end - start, StandardCharsets.US_ASCII);
+        switch (entity) {
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "amp":
+                return '&';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            default:
+                try {
+                    if (entity.startsWith("#x"))
+                        return Integer.parseInt(entity.substring(2), 16);
+                    if (entity.startsWith("#"))
+                        return Integer.parseInt(entity.substring(1));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+                return -1;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < limit; i++) {
+            if (data[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] pattern, int from) {
+        int last = limit - pattern.length;
+        for (int i = from; i <= last; i++) {
+            if (data[i] == pattern[0] && startsWith(i, pattern))
+                return i;
+        }
+        return -1;
+    }
+
+    // 跳过到指定结束符之后
+    private int skipTo(String end, int from) {
+        for (int i = from; i <= limit - end.length(); i++) {
+            if (startsWith(i, end))
+                return i + end.length();
+        }
+        throw malformed("缺少" + end, from);
+    }
+
+    private int skipTo(byte[] end, int from) {
+        int index = indexOf(end, from);
+        if (index < 0)
+            throw malformed("缺少" + new String(end, StandardCharsets.US_ASCII), from);
+        return index + end.length;
+    }
+
+    private boolean startsWith(int pos, String prefix) {
+        int length = prefix.length();
+        if (pos + length > limit)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (data[pos + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int pos, byte[] prefix) {
+        if (pos + prefix.length > limit)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[pos + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isNameEnd(byte b) {
+        return '>' == b || '/' == b || isWhitespace(b);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return ' ' == b || '\n' == b || '\r' == b || '\t' == b;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    private static IllegalArgumentException malformed(String reason, int pos) {
+        return new IllegalArgumentException("非法的微信消息XML：" + reason + "，位置 " + pos);
+    }
+}
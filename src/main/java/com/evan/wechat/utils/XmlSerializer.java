@@ -0,0 +1,200 @@
+package com.evan.wechat.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 响应消息的XML序列化
+ * <p>
+ * 每个消息类第一次序列化时按字段声明顺序（父类字段在前）生成一组不可变的字段写出器，之后的序列化
+ * 只遍历这组写出器，不加锁也不修改任何共享状态。输出与原先XStream的结构一致：根节点为xml，
+ * 字符串取值使用CDATA，列表元素的节点名为item，值为null的字段不输出；数字不再包裹CDATA，且不做缩进。
+ * 输出直接按UTF-8写入 {@link Utf8Writer}。
+ */
+public final class XmlSerializer {
+
+    private static final ConcurrentMap<Class<?>, XmlSerializer> serializers = new ConcurrentHashMap<Class<?>, XmlSerializer>();
+
+    private static final byte[] XML_START = ascii("<xml>");
+    private static final byte[] XML_END = ascii("</xml>");
+    private static final byte[] ITEM_START = ascii("<item>");
+    private static final byte[] ITEM_END = ascii("</item>");
+
+    private final Class<?> type;
+    private final Property[] properties;
+    // 实现了XmlWritable的类自行输出
+    private final boolean writable;
+
+    private XmlSerializer(Class<?> type) {
+        this.type = type;
+        this.writable = XmlWritable.class.isAssignableFrom(type);
+        List<Field> fields = new ArrayList<Field>();
+        collectFields(type, fields);
+        this.properties = new Property[fields.size()];
+        for (int i = 0; i < properties.length; i++)
+            properties[i] = new Property(fields.get(i));
+    }
+
+    /**
+     * 获取消息类对应的序列化器
+     *
+     * @param type 消息类
+     * @return XmlSerializer
+     */
+    public static XmlSerializer of(Class<?> type) {
+        XmlSerializer serializer = serializers.get(type);
+        if (null == serializer) {
+            serializer = new XmlSerializer(type);
+            XmlSerializer exists = serializers.putIfAbsent(type, serializer);
+            if (null != exists)
+                serializer = exists;
+        }
+        return serializer;
+    }
+
+    private static void collectFields(Class<?> type, List<Field> fields) {
+        if (null == type || Object.class == type)
+            return;
+        collectFields(type.getSuperclass(), fields);
+        for (Field field : type.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic())
+                continue;
+            field.setAccessible(true);
+            fields.add(field);
+        }
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * 序列化为以xml为根节点的文档
+     *
+     * @param message 消息对象
+     * @return xml
+     */
+    public String toXml(Object message) {
+        Utf8Writer writer = Utf8Writer.local();
+        write(message, writer);
+        return writer.toString();
+    }
+
+    /**
+     * 序列化为以xml为根节点的文档，直接按UTF-8编码写入
+     *
+     * @param message 消息对象
+     * @param out     输出
+     */
+    public void write(Object message, Utf8Writer out) {
+        if (writable) {
+            ((XmlWritable) message).writeXml(out);
+            return;
+        }
+        out.write(XML_START);
+        writeProperties(message, out);
+        out.write(XML_END);
+    }
+
+    // 写出对象的所有字段，不含外层节点
+    void writeProperties(Object value, Utf8Writer out) {
+        for (Property property : properties)
+            property.write(value, out);
+    }
+
+    /**
+     * 写出除指定字段外的所有字段，不含外层xml节点，用于预渲染回复模板
+     *
+     * @param message  消息对象
+     * @param out      输出
+     * @param excluded 不输出的字段名
+     */
+    public void writeProperties(Object message, Utf8Writer out, Collection<String> excluded) {
+        for (Property property : properties) {
+            if (!excluded.contains(property.name))
+                property.write(message, out);
+        }
+    }
+
+    /**
+     * 单个字段的写出器，创建时确定字段的写出方式
+     */
+    private static final class Property {
+        private static final int TEXT = 0;
+        private static final int NUMBER = 1;
+        private static final int OBJECT = 2;
+        private static final int LIST = 3;
+
+        private final Field field;
+        private final String name;
+        // 预先编码的开始、结束标签
+        private final byte[] start;
+        private final byte[] end;
+        private final int kind;
+
+        Property(Field field) {
+            this.field = field;
+            this.name = field.getName();
+            this.start = ascii("<" + field.getName() + ">");
+            this.end = ascii("</" + field.getName() + ">");
+            Class<?> fieldType = field.getType();
+            if (fieldType.isPrimitive() && boolean.class != fieldType && char.class != fieldType
+                    || Number.class.isAssignableFrom(fieldType))
+                kind = NUMBER;
+            else if (Collection.class.isAssignableFrom(fieldType))
+                kind = LIST;
+            else if (String.class == fieldType || fieldType.isPrimitive() || fieldType.isEnum()
+                    || fieldType.getName().startsWith("java."))
+                kind = TEXT;
+            else
+                kind = OBJECT;
+        }
+
+        void write(Object owner, Utf8Writer out) {
+            Object value;
+            try {
+                value = field.get(owner);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            if (null == value)
+                return;
+            out.write(start);
+            switch (kind) {
+                case NUMBER:
+                    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+                        out.write(((Number) value).longValue());
+                    else
+                        out.write(value.toString());
+                    break;
+                case TEXT:
+                    out.writeCdata(value.toString());
+                    break;
+                case OBJECT:
+                    of(value.getClass()).writeProperties(value, out);
+                    break;
+                default:
+                    for (Object item : (Collection<?>) value) {
+                        if (null == item)
+                            continue;
+                        out.write(ITEM_START);
+                        of(item.getClass()).writeProperties(item, out);
+                        out.write(ITEM_END);
+                    }
+                    break;
+            }
+            out.write(end);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,14 @@
+package com.evan.wechat.utils;
+
+/**
+ * 能够自行输出XML的响应消息，序列化时不再按字段反射
+ */
+public interface XmlWritable {
+
+    /**
+     * 输出以xml为根节点的完整文档
+     *
+     * @param out 输出
+     */
+    void writeXml(Utf8Writer out);
+}
@@ -0,0 +1,61 @@
+package com.evan.wechat.message.resp;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReplyTemplateTest {
+
+    private static TextMessage text(String content) {
+        TextMessage message = new TextMessage();
+        message.setMsgType("text");
+        message.setContent(content);
+        return message;
+    }
+
+    private static String render(ReplyTemplate template) {
+        return new String(template.render("to", "from", 1), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void modifyingTheOriginalDoesNotAffectTheTemplate() {
+        TextMessage message = text("欢迎关注");
+        ReplyTemplate template = ReplyTemplate.of(message);
+        message.setContent("changed");
+        assertTrue(render(template).contains("欢迎关注"));
+        assertEquals("欢迎关注", ((TextMessage) template.getPrototype()).getContent());
+    }
+
+    @Test
+    public void prototypeIsACopy() {
+        ReplyTemplate template = ReplyTemplate.of(text("欢迎关注"));
+        TextMessage prototype = (TextMessage) template.getPrototype();
+        prototype.setContent("changed");
+        assertNotSame(prototype, template.getPrototype());
+        assertEquals("欢迎关注", ((TextMessage) template.getPrototype()).getContent());
+    }
+
+    @Test
+    public void nestedPropertiesAreCopied() {
+        Article article = new Article();
+        article.setTitle("标题");
+        article.setUrl("http://example.com");
+        NewsMessage message = new NewsMessage();
+        message.setMsgType("news");
+        message.setArticleCount(1);
+        message.setArticles(Collections.singletonList(article));
+        ReplyTemplate template = ReplyTemplate.of(message);
+        article.setTitle("changed");
+
+        NewsMessage prototype = (NewsMessage) template.getPrototype();
+        assertEquals(1, prototype.getArticleCount());
+        assertEquals("标题", prototype.getArticles().get(0).getTitle());
+        assertEquals("http://example.com", prototype.getArticles().get(0).getUrl());
+        assertTrue(render(template).contains("标题"));
+    }
+}
@@ -0,0 +1,107 @@
+package com.evan.wechat.session;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SessionStoreTest {
+
+    private static void create(SessionStore store, String openId) {
+        WechatSession session = store.getOrCreate(openId);
+        session.setAttribute("owner", openId);
+        store.save(session);
+    }
+
+    @Test
+    public void wheelExpiresIdleSessions() throws InterruptedException {
+        MemorySessionStore store = new MemorySessionStore(100, 100);
+        create(store, "a");
+        create(store, "b");
+        Thread.sleep(150);
+        // 不经过get，由时间轮转到对应的格时清除
+        store.expire();
+        assertEquals(0, store.size());
+        assertNull(store.get("a"));
+    }
+
+    @Test
+    public void accessKeepsSessionAlive() throws InterruptedException {
+        MemorySessionStore store = new MemorySessionStore(200, 100);
+        create(store, "a");
+        create(store, "b");
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(40);
+            assertNotNull(store.get("a"));
+            store.expire();
+        }
+        // a一直被访问，时间轮转到时重新挂到后面的格上；b闲置超过ttl被清除
+        assertEquals(1, store.size());
+        assertEquals("a", store.get("a").getAttribute("owner"));
+    }
+
+    @Test
+    public void evictsEarliestDeadlineWhenFull() throws InterruptedException {
+        MemorySessionStore store = new MemorySessionStore(60000, 2);
+        create(store, "a");
+        Thread.sleep(5);
+        create(store, "b");
+        Thread.sleep(5);
+        create(store, "c");
+        assertEquals(2, store.size());
+        assertNull(store.get("a"));
+        assertNotNull(store.get("b"));
+        assertNotNull(store.get("c"));
+    }
+
+    @Test
+    public void offHeapReusesFreedSlots() {
+        OffHeapSessionStore store = new OffHeapSessionStore(60000, 2, 64);
+        create(store, "a");
+        create(store, "b");
+        store.remove("a");
+        // 复用a的槽位，不淘汰b，也读不到a留下的内容
+        WechatSession c = store.getOrCreate("c");
+        assertNull(c.getAttribute("owner"));
+        c.setAttribute("owner", "c");
+        store.save(c);
+        assertEquals(2, store.size());
+        assertNull(store.get("a"));
+        assertEquals("b", store.get("b").getAttribute("owner"));
+        assertEquals("c", store.get("c").getAttribute("owner"));
+    }
+
+    @Test
+    public void offHeapEvictsWhenSlotsRunOut() throws InterruptedException {
+        OffHeapSessionStore store = new OffHeapSessionStore(60000, 2, 64);
+        create(store, "a");
+        Thread.sleep(5);
+        create(store, "b");
+        Thread.sleep(5);
+        create(store, "c");
+        assertEquals(2, store.size());
+        assertNull(store.get("a"));
+        assertEquals("b", store.get("b").getAttribute("owner"));
+        assertEquals("c", store.get("c").getAttribute("owner"));
+    }
+
+    @Test
+    public void offHeapReturnsSlotOfOversizedSession() {
+        OffHeapSessionStore store = new OffHeapSessionStore(60000, 1, 64);
+        WechatSession session = new WechatSession("a", System.currentTimeMillis());
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 64; i++)
+            value.append('x');
+        session.setAttribute("big", value.toString());
+        try {
+            store.save(session);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, store.size());
+        create(store, "b");
+        assertEquals("b", store.get("b").getAttribute("owner"));
+    }
+}
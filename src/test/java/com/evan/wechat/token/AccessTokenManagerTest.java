@@ -0,0 +1,121 @@
+package com.evan.wechat.token;
+
+import com.evan.wechat.model.AccessToken;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AccessTokenManagerTest {
+
+    private final ScheduledExecutorService scheduler = stoppedScheduler();
+    private final ExecutorService callers = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    // 已关闭的线程池不会安排后台刷新，测试只观察调用方触发的刷新
+    static ScheduledExecutorService stoppedScheduler() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.shutdown();
+        return scheduler;
+    }
+
+    static AccessToken token(String value, long expiresInMillis) {
+        AccessToken token = new AccessToken();
+        token.setToken(value);
+        token.setExpiresAt(System.currentTimeMillis() + expiresInMillis);
+        return token;
+    }
+
+    @Test
+    public void concurrentCallersShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        AccessTokenManager manager = new AccessTokenManager(() -> {
+            loads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return token("t1", 7200 * 1000L);
+        }, scheduler, AccessTokenManager.DEFAULT_REFRESH_AHEAD);
+
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++)
+            results.add(callers.submit(manager::getToken));
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<String> result : results)
+            assertEquals("t1", result.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals("t1", manager.getToken());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void failedRefreshFallsBackToStillValidToken() {
+        // 只剩30秒，已进入提前刷新的余量但尚未过期
+        Supplier<AccessToken> loader = sequence(token("t1", 30 * 1000L), null);
+        AccessTokenManager manager = new AccessTokenManager(loader, scheduler, AccessTokenManager.DEFAULT_REFRESH_AHEAD);
+        assertEquals("t1", manager.getToken());
+        assertEquals("t1", manager.getToken());
+    }
+
+    @Test
+    public void failedRefreshWithExpiredTokenThrows() {
+        Supplier<AccessToken> loader = sequence(token("t1", -1000L), null);
+        AccessTokenManager manager = new AccessTokenManager(loader, scheduler, AccessTokenManager.DEFAULT_REFRESH_AHEAD);
+        assertEquals("t1", manager.refresh(null).join().getToken());
+        try {
+            manager.getToken();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void renewReplacesRejectedTokenOnce() {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<AccessToken> loader = () -> token("t" + loads.incrementAndGet(), 7200 * 1000L);
+        AccessTokenManager manager = new AccessTokenManager(loader, scheduler, AccessTokenManager.DEFAULT_REFRESH_AHEAD);
+        assertEquals("t1", manager.getToken());
+        assertEquals("t2", manager.renew("t1"));
+        // 其他调用方拿着同一个失效凭证，凭证已被替换，不再刷新
+        assertEquals("t2", manager.renew("t1"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void renewDoesNotFallBackToRejectedToken() {
+        Supplier<AccessToken> loader = sequence(token("t1", 7200 * 1000L), null);
+        AccessTokenManager manager = new AccessTokenManager(loader, scheduler, AccessTokenManager.DEFAULT_REFRESH_AHEAD);
+        assertEquals("t1", manager.getToken());
+        try {
+            manager.renew("t1");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    // 依次返回给定的凭证，null表示失败
+    private static Supplier<AccessToken> sequence(AccessToken... tokens) {
+        AtomicInteger next = new AtomicInteger();
+        return () -> tokens[Math.min(next.getAndIncrement(), tokens.length - 1)];
+    }
+}
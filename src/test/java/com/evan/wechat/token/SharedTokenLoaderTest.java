@@ -0,0 +1,157 @@
+package com.evan.wechat.token;
+
+import com.evan.wechat.model.AccessToken;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.evan.wechat.token.AccessTokenManagerTest.token;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedTokenLoaderTest {
+
+    private static final long MARGIN = 60 * 1000;
+
+    /**
+     * 单进程内的存储，租约按调用方给出的时长到期
+     */
+    static final class MemoryTokenStore implements TokenStore {
+        volatile AccessToken token;
+        private String owner;
+        private long leaseUntil;
+
+        @Override
+        public AccessToken load(String appId) {
+            return token;
+        }
+
+        @Override
+        public void save(String appId, AccessToken token) {
+            this.token = token;
+        }
+
+        @Override
+        public synchronized boolean tryLease(String appId, String owner, long millis) {
+            long now = System.currentTimeMillis();
+            if (null != this.owner && !this.owner.equals(owner) && now < leaseUntil)
+                return false;
+            this.owner = owner;
+            this.leaseUntil = now + millis;
+            return true;
+        }
+
+        @Override
+        public synchronized void releaseLease(String appId, String owner) {
+            if (owner.equals(this.owner))
+                this.owner = null;
+        }
+
+        // 模拟其他节点持有租约
+        synchronized void leaseToOther(long millis) {
+            owner = "other";
+            leaseUntil = System.currentTimeMillis() + millis;
+        }
+
+        synchronized String getOwner() {
+            return owner;
+        }
+    }
+
+    private static Supplier<AccessToken> counting(AtomicInteger fetches, String value) {
+        return () -> {
+            fetches.incrementAndGet();
+            return token(value, 7200 * 1000L);
+        };
+    }
+
+    @Test
+    public void usesSharedTokenWithoutFetching() {
+        MemoryTokenStore store = new MemoryTokenStore();
+        store.token = token("shared", 7200 * 1000L);
+        AtomicInteger fetches = new AtomicInteger();
+        SharedTokenLoader loader = new SharedTokenLoader("app", counting(fetches, "fresh"), store, MARGIN);
+        assertSame(store.token, loader.apply(null));
+        assertEquals(0, fetches.get());
+    }
+
+    @Test
+    public void leaseHolderFetchesAndWritesBack() {
+        MemoryTokenStore store = new MemoryTokenStore();
+        AccessToken stale = token("stale", 7200 * 1000L);
+        store.token = stale;
+        AtomicInteger fetches = new AtomicInteger();
+        SharedTokenLoader loader = new SharedTokenLoader("app", counting(fetches, "fresh"), store, MARGIN);
+        // 存储中的凭证正是要替换的那个，需重新请求
+        assertEquals("fresh", loader.apply(stale).getToken());
+        assertEquals("fresh", store.token.getToken());
+        assertEquals(1, fetches.get());
+        assertNull(store.getOwner());
+    }
+
+    @Test
+    public void leaseIsReleasedWhenFetchFails() {
+        MemoryTokenStore store = new MemoryTokenStore();
+        SharedTokenLoader loader = new SharedTokenLoader("app", () -> null, store, MARGIN);
+        try {
+            loader.apply(null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertNull(store.getOwner());
+    }
+
+    @Test
+    public void waitsForOtherNodeToWriteBack() throws InterruptedException {
+        MemoryTokenStore store = new MemoryTokenStore();
+        store.leaseToOther(SharedTokenLoader.LEASE_MILLIS);
+        AtomicInteger fetches = new AtomicInteger();
+        SharedTokenLoader loader = new SharedTokenLoader("app", counting(fetches, "mine"), store, MARGIN);
+        Thread other = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                return;
+            }
+            store.save("app", token("theirs", 7200 * 1000L));
+        });
+        other.start();
+        assertEquals("theirs", loader.apply(null).getToken());
+        assertEquals(0, fetches.get());
+        other.join();
+    }
+
+    @Test
+    public void stillValidStaleTokenWaitsOnlyStaleWait() {
+        MemoryTokenStore store = new MemoryTokenStore();
+        AccessToken stale = token("stale", 30 * 1000L);
+        store.token = stale;
+        store.leaseToOther(SharedTokenLoader.LEASE_MILLIS);
+        AtomicInteger fetches = new AtomicInteger();
+        SharedTokenLoader loader = new SharedTokenLoader("app", counting(fetches, "mine"), store, MARGIN);
+        long start = System.currentTimeMillis();
+        try {
+            loader.apply(stale);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        long waited = System.currentTimeMillis() - start;
+        assertTrue(waited + "ms", waited >= SharedTokenLoader.STALE_WAIT && waited < SharedTokenLoader.LEASE_MILLIS);
+        assertEquals(0, fetches.get());
+    }
+
+    @Test
+    public void takesOverExpiredLease() {
+        MemoryTokenStore store = new MemoryTokenStore();
+        // 持有租约的节点宕机，租约到期后由本节点刷新
+        store.leaseToOther(500);
+        AtomicInteger fetches = new AtomicInteger();
+        SharedTokenLoader loader = new SharedTokenLoader("app", counting(fetches, "mine"), store, MARGIN);
+        assertEquals("mine", loader.apply(null).getToken());
+        assertEquals(1, fetches.get());
+    }
+}
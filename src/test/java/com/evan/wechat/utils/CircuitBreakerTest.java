@@ -0,0 +1,94 @@
+package com.evan.wechat.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CircuitBreakerTest {
+
+    private static CircuitBreaker open(long openMillis) {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50, 1000, openMillis);
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++)
+            breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    @Test
+    public void opensAfterFailuresAndRejects() {
+        CircuitBreaker breaker = open(60000);
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    }
+
+    @Test
+    public void slowCallsCount() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50, 1000, 60000);
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++)
+            breaker.onSuccess(breaker.tryAcquire(), 5000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void probesCloseTheBreaker() {
+        CircuitBreaker breaker = open(0);
+        long[] probes = new long[CircuitBreaker.PROBES];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = breaker.tryAcquire();
+            assertNotEquals(CircuitBreaker.REJECTED, probes[i]);
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        for (long probe : probes)
+            breaker.onSuccess(probe, 10);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void resultsFromBeforeOpeningAreIgnoredWhileHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50, 1000, 0);
+        long stale = breaker.tryAcquire();
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++)
+            breaker.onFailure(breaker.tryAcquire());
+        long probe = breaker.tryAcquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // 打开前发出的慢请求此时才返回，不能让半开状态再次打开
+        breaker.onFailure(stale);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(stale, 10);
+        breaker.onFailure(probe);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void probeFailureReopens() {
+        CircuitBreaker breaker = open(0);
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void onlyIgnoredProbesAreReturned() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 50, 1000, 0);
+        long stale = breaker.tryAcquire();
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++)
+            breaker.onFailure(breaker.tryAcquire());
+        for (int i = 0; i < CircuitBreaker.PROBES; i++)
+            breaker.tryAcquire();
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        // 关闭状态发出的请求被中止，不归还探测名额
+        breaker.onIgnored(stale);
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    }
+
+    @Test
+    public void ignoredProbeFreesItsSlot() {
+        CircuitBreaker breaker = open(0);
+        long first = breaker.tryAcquire();
+        for (int i = 1; i < CircuitBreaker.PROBES; i++)
+            breaker.tryAcquire();
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        breaker.onIgnored(first);
+        assertNotEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    }
+}
@@ -0,0 +1,78 @@
+package com.evan.wechat.utils;
+
+import com.evan.wechat.event.EventType;
+import com.evan.wechat.message.MsgType;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertSame;
+
+public class EnumLookupTest {
+
+    private enum Color {
+        RED("red"), GREEN("green"), BLUE("Blue"), NONE(null);
+
+        final String value;
+
+        Color(String value) {
+            this.value = value;
+        }
+    }
+
+    private static <E extends Enum<E>> E findBytes(EnumLookup<E> lookup, String value, E defaultValue) {
+        // 前后各加一个字节，验证按区间查找
+        byte[] data = ("<" + value + ">").getBytes(StandardCharsets.UTF_8);
+        return lookup.find(data, 1, data.length - 1, defaultValue);
+    }
+
+    @Test
+    public void findsEveryConstant() {
+        for (MsgType type : MsgType.values()) {
+            if (null == type.getValue())
+                continue;
+            assertSame(type, MsgType.of(type.getValue()));
+            byte[] data = type.getValue().getBytes(StandardCharsets.US_ASCII);
+            assertSame(type, MsgType.of(data, 0, data.length));
+        }
+        for (EventType type : EventType.values()) {
+            if (null == type.getValue())
+                continue;
+            assertSame(type, EventType.of(type.getValue()));
+            assertSame(type, EventType.of(type.getValue().toLowerCase()));
+            assertSame(type, EventType.of(type.getValue().toUpperCase()));
+            byte[] data = type.getValue().toLowerCase().getBytes(StandardCharsets.US_ASCII);
+            assertSame(type, EventType.of(data, 0, data.length));
+        }
+    }
+
+    @Test
+    public void caseSensitivity() {
+        EnumLookup<Color> exact = new EnumLookup<Color>(Color.values(), c -> c.value, false);
+        assertSame(Color.RED, exact.find("red", null));
+        assertSame(Color.BLUE, exact.find("Blue", null));
+        assertSame(null, exact.find("RED", null));
+        assertSame(null, findBytes(exact, "blue", null));
+        assertSame(MsgType.UNKNOWN, MsgType.of("TEXT"));
+
+        EnumLookup<Color> folded = new EnumLookup<Color>(Color.values(), c -> c.value, true);
+        assertSame(Color.RED, folded.find("RED", null));
+        assertSame(Color.BLUE, folded.find("bLUE", null));
+        assertSame(Color.GREEN, findBytes(folded, "GREEN", null));
+    }
+
+    @Test
+    public void unknownValues() {
+        EnumLookup<Color> lookup = new EnumLookup<Color>(Color.values(), c -> c.value, true);
+        assertSame(Color.NONE, lookup.find((String) null, Color.NONE));
+        assertSame(Color.NONE, lookup.find("", Color.NONE));
+        assertSame(Color.NONE, lookup.find("re", Color.NONE));
+        assertSame(Color.NONE, lookup.find("reds", Color.NONE));
+        assertSame(Color.NONE, lookup.find("红", Color.NONE));
+        assertSame(Color.NONE, findBytes(lookup, "红", Color.NONE));
+        // 只有A-Z参与大小写折叠
+        assertSame(Color.NONE, lookup.find("r\u0005d", Color.NONE));
+        assertSame(EventType.UNKNOWN, EventType.of("unknown_event"));
+        assertSame(EventType.UNKNOWN, EventType.of((String) null));
+    }
+}
@@ -0,0 +1,104 @@
+package com.evan.wechat.utils;
+
+import com.evan.wechat.utils.KeywordIndex.Keyword;
+import com.evan.wechat.utils.KeywordIndex.MatchMode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class KeywordIndexTest {
+
+    private static Keyword<String> contains(String text, int priority) {
+        return new Keyword<String>(text, MatchMode.CONTAINS, priority, text);
+    }
+
+    @SafeVarargs
+    private static KeywordIndex<String> index(Keyword<String>... keywords) {
+        return KeywordIndex.build(Arrays.asList(keywords));
+    }
+
+    private static String match(KeywordIndex<String> index, String content) {
+        Keyword<String> keyword = index.match(content);
+        return null == keyword ? null : keyword.getValue();
+    }
+
+    @Test
+    public void matchesThroughFailLinks() {
+        KeywordIndex<String> index = index(contains("he", 1), contains("she", 2), contains("his", 3), contains("hers", 4));
+        assertEquals("hers", match(index, "ushers"));
+        assertEquals("she", match(index, "ushe"));
+        assertEquals("his", match(index, "ahishe"));
+        // 只在失配链上的节点有输出
+        index = index(contains("abcd", 2), contains("bc", 1));
+        assertEquals("bc", match(index, "abce"));
+        assertNull(match(index, "acbd"));
+    }
+
+    @Test
+    public void higherPriorityWinsThenEarlierKeyword() {
+        KeywordIndex<String> index = index(contains("天气", 1), contains("北京天气", 1), contains("北京", 5));
+        assertEquals("北京", match(index, "北京天气怎么样"));
+        index = index(contains("天气", 1), contains("北京天气", 1));
+        assertEquals("天气", match(index, "北京天气怎么样"));
+    }
+
+    @Test
+    public void modesRestrictWherePatternsMayMatch() {
+        Keyword<String> exact = new Keyword<String>("帮助", MatchMode.EXACT, 3, "exact");
+        Keyword<String> prefix = new Keyword<String>("帮助", MatchMode.PREFIX, 2, "prefix");
+        Keyword<String> contains = new Keyword<String>("帮助", MatchMode.CONTAINS, 1, "contains");
+        KeywordIndex<String> index = index(contains, prefix, exact);
+        assertEquals("exact", match(index, "帮助"));
+        assertEquals("prefix", match(index, "帮助一下"));
+        assertEquals("contains", match(index, "需要帮助"));
+        assertNull(match(index(exact, prefix), "需要帮助"));
+    }
+
+    @Test
+    public void ignoreCase() {
+        List<Keyword<String>> keywords = Arrays.asList(new Keyword<String>("Help", MatchMode.EXACT, 0, "help"));
+        assertNull(match(KeywordIndex.build(keywords), "HELP"));
+        assertEquals("help", match(KeywordIndex.build(keywords, true), "HELP"));
+    }
+
+    @Test
+    public void filterSkipsToTheNextBest() {
+        KeywordIndex<String> index = index(contains("a", 2), contains("b", 1));
+        assertEquals("b", index.match("ab", value -> !"a".equals(value)).getValue());
+    }
+
+    @Test
+    public void agreesWithMatchingEachKeyword() {
+        Random random = new Random(42);
+        MatchMode[] modes = MatchMode.values();
+        for (int round = 0; round < 200; round++) {
+            List<Keyword<String>> keywords = new ArrayList<Keyword<String>>();
+            for (int i = 0; i < 8; i++)
+                keywords.add(new Keyword<String>(randomText(random, 1 + random.nextInt(3)), modes[random.nextInt(modes.length)],
+                        random.nextInt(3), "k" + i));
+            KeywordIndex<String> index = KeywordIndex.build(keywords);
+            for (int i = 0; i < 20; i++) {
+                String content = randomText(random, random.nextInt(8));
+                Keyword<String> expected = null;
+                for (Keyword<String> keyword : keywords) {
+                    if (keyword.matches(content, false) && (null == expected || keyword.getPriority() > expected.getPriority()))
+                        expected = keyword;
+                }
+                assertEquals(keywords + " " + content, expected, index.match(content));
+            }
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) ('a' + random.nextInt(3));
+        return new String(chars);
+    }
+}
@@ -0,0 +1,62 @@
+package com.evan.wechat.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void smallValuesHaveOneBucketPerMillisecond() {
+        assertEquals(0, LatencyTracker.bucket(-5));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, LatencyTracker.bucket(i));
+            assertEquals(i, LatencyTracker.upperBound(i));
+        }
+    }
+
+    @Test
+    public void knownBuckets() {
+        // 4~7ms每毫秒一个桶，8~15ms每2毫秒一个桶
+        assertEquals(4, LatencyTracker.bucket(4));
+        assertEquals(7, LatencyTracker.bucket(7));
+        assertEquals(8, LatencyTracker.bucket(8));
+        assertEquals(8, LatencyTracker.bucket(9));
+        assertEquals(11, LatencyTracker.bucket(15));
+        assertEquals(12, LatencyTracker.bucket(16));
+        assertEquals(9, LatencyTracker.upperBound(8));
+        assertEquals(15, LatencyTracker.upperBound(11));
+    }
+
+    @Test
+    public void everyValueFallsWithinItsBucket() {
+        for (long millis = 0; millis <= LatencyTracker.upperBound(63); millis++) {
+            int bucket = LatencyTracker.bucket(millis);
+            long upper = LatencyTracker.upperBound(bucket);
+            long lower = 0 == bucket ? 0 : LatencyTracker.upperBound(bucket - 1) + 1;
+            assertTrue(millis + "ms", lower <= millis && millis <= upper);
+            // 上界相对误差不超过25%
+            assertTrue(millis + "ms", upper * 4 <= Math.max(millis, 1) * 5 + 3);
+        }
+    }
+
+    @Test
+    public void lastBucketCoversLongerCalls() {
+        assertEquals(131071, LatencyTracker.upperBound(63));
+        assertEquals(63, LatencyTracker.bucket(131071));
+        assertEquals(63, LatencyTracker.bucket(131072));
+        assertEquals(63, LatencyTracker.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentileNeedsMinimumSamples() {
+        LatencyTracker tracker = new LatencyTracker();
+        for (int i = 1; i < LatencyTracker.MIN_SAMPLES; i++)
+            tracker.record(10);
+        assertEquals(-1, tracker.percentile(0.99));
+        tracker.record(1000);
+        assertEquals(LatencyTracker.upperBound(LatencyTracker.bucket(1000)), tracker.percentile(0.99));
+        assertEquals(LatencyTracker.upperBound(LatencyTracker.bucket(10)), tracker.percentile(0.5));
+    }
+}
@@ -0,0 +1,84 @@
+package com.evan.wechat.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageCryptTest {
+
+    private static final String TOKEN = "pamtest";
+    private static final String AES_KEY = "abcdefghijklmnopqrstuvwxyz0123456789ABCDEFG";
+    private static final String APP_ID = "wxb11529c136998cb6";
+
+    private static final String XML = "<xml><ToUserName><![CDATA[wxb11529c136998cb6]]></ToUserName>"
+            + "<Content><![CDATA[你好]]></Content></xml>";
+    // 随机串为"0123456789abcdef"时的密文，由openssl enc -aes-256-cbc -nopad独立生成
+    private static final String ENCRYPTED = "Q3stYC6hdFzMh9T8HCvyDEQXfsAOq3Pa7smZZKzCR0615e/jS04adaF4JecPo3zf"
+            + "Ecxlwk0XWz0s+pJKYWExJ1qyPtF0Rfs9havxukRo9Ma6eTRTaLVKogOOL1d36NBZXcRmqM7nVLtN5FM8SchfXH4JFRYc"
+            + "JgGUpoS3xF9sXLlK+schXTiZKqj7g5ZtSNdoTxJC7W4tw8/EEWmt73YejA==";
+
+    private final MessageCrypt crypt = new MessageCrypt(TOKEN, AES_KEY, APP_ID);
+
+    @Test
+    public void decryptsKnownCiphertext() throws GeneralSecurityException {
+        assertEquals(XML, new String(crypt.decrypt(ENCRYPTED), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void roundTrip() throws GeneralSecurityException {
+        for (int length : new int[]{0, 1, 11, 12, 13, 100, 5000}) {
+            StringBuilder xml = new StringBuilder();
+            for (int i = 0; i < length; i++)
+                xml.append((char) ('a' + i % 26));
+            byte[] plain = xml.toString().getBytes(StandardCharsets.UTF_8);
+            String encrypted = crypt.encryptToBase64(plain, 0, plain.length);
+            assertEquals(xml.toString(), new String(crypt.decrypt(encrypted), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void randomPrefixDiffersPerMessage() throws GeneralSecurityException {
+        byte[] plain = XML.getBytes(StandardCharsets.UTF_8);
+        assertNotEquals(crypt.encryptToBase64(plain, 0, plain.length), crypt.encryptToBase64(plain, 0, plain.length));
+    }
+
+    @Test
+    public void encryptedReplyDecryptsWithSignature() throws GeneralSecurityException {
+        String reply = crypt.encrypt(XML, "1409304348", "xxxxxx");
+        XmlMessage envelope = XmlMessage.scan(reply.getBytes(StandardCharsets.UTF_8));
+        assertEquals("1409304348", envelope.get("TimeStamp"));
+        String signature = envelope.get("MsgSignature");
+        XmlMessage message = crypt.decrypt(envelope, signature, "1409304348", "xxxxxx");
+        assertEquals("你好", message.get("Content"));
+
+        try {
+            crypt.decrypt(envelope, signature, "1409304349", "xxxxxx");
+            fail("expected SignatureException");
+        } catch (SignatureException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsOtherAppId() {
+        MessageCrypt other = new MessageCrypt(TOKEN, AES_KEY, "wx0000000000000000");
+        try {
+            other.decrypt(ENCRYPTED);
+            fail("expected GeneralSecurityException");
+        } catch (GeneralSecurityException e) {
+            assertTrue(e.getMessage().contains("AppId"));
+        }
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void rejectsTruncatedCiphertext() throws GeneralSecurityException {
+        crypt.decrypt(ENCRYPTED.substring(0, 40));
+    }
+}
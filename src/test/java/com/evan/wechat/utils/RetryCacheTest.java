@@ -0,0 +1,56 @@
+package com.evan.wechat.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RetryCacheTest {
+
+    private static XmlMessage scan(String xml) {
+        return XmlMessage.scan(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void keyIncludesAccount() {
+        String a = RetryCache.keyOf(scan("<xml><ToUserName>gh_a</ToUserName><FromUserName>u</FromUserName>"
+                + "<CreateTime>1</CreateTime><MsgType>event</MsgType></xml>"));
+        String b = RetryCache.keyOf(scan("<xml><ToUserName>gh_b</ToUserName><FromUserName>u</FromUserName>"
+                + "<CreateTime>1</CreateTime><MsgType>event</MsgType></xml>"));
+        assertEquals("gh_a#u#1", a);
+        assertNotEquals(a, b);
+        assertEquals("gh_a#42", RetryCache.keyOf(scan("<xml><ToUserName>gh_a</ToUserName><FromUserName>u</FromUserName>"
+                + "<CreateTime>1</CreateTime><MsgId>42</MsgId></xml>")));
+    }
+
+    @Test
+    public void encryptedEnvelopeHasNoKey() {
+        assertNull(RetryCache.keyOf(scan("<xml><ToUserName>gh_a</ToUserName><Encrypt>abc</Encrypt></xml>")));
+    }
+
+    @Test
+    public void coalescesUntilRemoved() {
+        RetryCache cache = new RetryCache(4, 60000, 1);
+        CompletableFuture<byte[]> first = new CompletableFuture<byte[]>();
+        assertNull(cache.putIfAbsent("k", first));
+        assertSame(first, cache.putIfAbsent("k", new CompletableFuture<byte[]>()));
+        assertSame(first, cache.get("k"));
+        assertTrue(cache.remove("k", first));
+        assertNull(cache.get("k"));
+    }
+
+    @Test
+    public void evictsOldestBeyondCapacity() {
+        RetryCache cache = new RetryCache(2, 60000, 1);
+        for (int i = 0; i < 3; i++)
+            cache.putIfAbsent("k" + i, new CompletableFuture<byte[]>());
+        assertEquals(2, cache.size());
+        assertNull(cache.get("k0"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.evan.wechat.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SignatureUtilTest {
+
+    // sha1("1409304348" + "wechat_token" + "xxxxxx")
+    private static final String SIGNATURE = "0fce18e69ae1d40a628da938a76611df3499fcfe";
+
+    @Test
+    public void checkSignature() {
+        assertTrue(SignatureUtil.checkSignature("wechat_token", SIGNATURE, "1409304348", "xxxxxx"));
+        assertTrue(SignatureUtil.checkSignature("wechat_token", SIGNATURE.toUpperCase(), "1409304348", "xxxxxx"));
+        assertFalse(SignatureUtil.checkSignature("wechat_token", SIGNATURE, "1409304349", "xxxxxx"));
+        assertFalse(SignatureUtil.checkSignature("other_token", SIGNATURE, "1409304348", "xxxxxx"));
+        assertFalse(SignatureUtil.checkSignature("wechat_token", SIGNATURE.substring(1), "1409304348", "xxxxxx"));
+        assertFalse(SignatureUtil.checkSignature("wechat_token", null, "1409304348", "xxxxxx"));
+    }
+
+    @Test
+    public void rejectsNonHexCharacters() {
+        // 0x10 | 0x20 == '0'，只有A-F可以折叠为小写
+        String folded = SIGNATURE.replace('0', (char) 0x10);
+        assertFalse(SignatureUtil.checkSignature("wechat_token", folded, "1409304348", "xxxxxx"));
+        assertFalse(SignatureUtil.checkSignature("wechat_token", SIGNATURE.replace('f', 'g'), "1409304348", "xxxxxx"));
+        assertFalse(SignatureUtil.checkSignature("wechat_token", SIGNATURE.replace('f', 'G'), "1409304348", "xxxxxx"));
+    }
+
+    @Test
+    public void checkMsgSignature() {
+        // sha1("1409304348" + "ENCRYPTED" + "pamtest" + "xxxxxx")
+        String signature = "8a77e542b468681dd7daf516738b9aa35537b9db";
+        assertTrue(SignatureUtil.checkMsgSignature("pamtest", signature, "1409304348", "xxxxxx", "ENCRYPTED"));
+        assertFalse(SignatureUtil.checkMsgSignature("pamtest", signature, "1409304348", "xxxxxx", "ENCRYPTEE"));
+        assertEquals(signature, SignatureUtil.sortedSha1Hex("pamtest", "1409304348", "xxxxxx", "ENCRYPTED"));
+    }
+
+    @Test
+    public void jsapiSignature() {
+        // 微信JS-SDK文档附录中的示例
+        String signature = SignatureUtil.jsapiSignature(
+                "sM4AOVdWfPE4DxkXGEs8VMCPGGVi4C3VM0P37wVUCFvkVAy_90u5h9nbSlYy3-Sl-HhTdfl2fzFy1AOcHKP7qg",
+                "Wm3WZYTPz0wzccnW", "1414587457", "http://mp.weixin.qq.com?params=value");
+        assertEquals("0f9de62fce790f9a083d5c99e95740ceb90c27ed", signature);
+    }
+
+    @Test
+    public void failedCallDoesNotAffectNextSignature() {
+        try {
+            SignatureUtil.jsapiSignature("ticket", "nonce", null, "http://example.com");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            SignatureUtil.sortedSha1Hex("pamtest", null, "xxxxxx");
+            fail();
+        } catch (NullPointerException expected) {
+        }
+        assertTrue(SignatureUtil.checkSignature("wechat_token", SIGNATURE, "1409304348", "xxxxxx"));
+        jsapiSignature();
+    }
+
+    @Test
+    public void toHex() {
+        assertEquals("00017f80ff", SignatureUtil.toHex(new byte[]{0, 1, 0x7f, (byte) 0x80, (byte) 0xff}));
+    }
+}
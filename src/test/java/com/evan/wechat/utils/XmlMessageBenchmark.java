@@ -0,0 +1,90 @@
+package com.evan.wechat.utils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 回调XML解析的基准测试：dom4j、StAX与字节扫描
+ * <p>
+ * 每种方式都读取分发时用到的MsgType、FromUserName、ToUserName、Content，扫描方式复用同一个XmlMessage。
+ * 不在mvn test中运行，需要时手动执行：
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *     com.evan.wechat.utils.XmlMessageBenchmark [iterations]
+ * </pre>
+ */
+public class XmlMessageBenchmark {
+
+    static final byte[] TEXT_MESSAGE = ("<xml>"
+            + "<ToUserName><![CDATA[gh_1234567890ab]]></ToUserName>"
+            + "<FromUserName><![CDATA[oUpF8uMuAJO_M2pxb1Q9zNjWeS6o]]></FromUserName>"
+            + "<CreateTime>1348831860</CreateTime>"
+            + "<MsgType><![CDATA[text]]></MsgType>"
+            + "<Content><![CDATA[你好，请问今天的活动几点开始？]]></Content>"
+            + "<MsgId>1234567890123456</MsgId>"
+            + "</xml>").getBytes(StandardCharsets.UTF_8);
+
+    // 防止结果被JIT消除
+    static volatile int sink;
+
+    interface Parser {
+        int parse(byte[] data) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        Parser dom4j = new Parser() {
+            public int parse(byte[] data) throws Exception {
+                return read(MessageUtil.parseXmlByDom4j(new ByteArrayInputStream(data)));
+            }
+        };
+        Parser stax = new Parser() {
+            public int parse(byte[] data) throws Exception {
+                return read(MessageUtil.parseXmlByStax(new ByteArrayInputStream(data)));
+            }
+        };
+        final XmlMessage message = new XmlMessage();
+        Parser scan = new Parser() {
+            public int parse(byte[] data) {
+                message.reset(data, 0, data.length);
+                return message.getMsgType().ordinal() + message.get("FromUserName").length()
+                        + message.get("ToUserName").length() + message.get("Content").length();
+            }
+        };
+
+        // 预热
+        for (int round = 0; round < 3; round++) {
+            run(dom4j, iterations / 10);
+            run(stax, iterations / 10);
+            run(scan, iterations / 10);
+        }
+        report("dom4j", dom4j, iterations);
+        report("StAX", stax, iterations);
+        report("scan", scan, iterations);
+    }
+
+    private static int read(Map<String, String> map) {
+        return map.get("MsgType").length() + map.get("FromUserName").length()
+                + map.get("ToUserName").length() + map.get("Content").length();
+    }
+
+    private static long run(Parser parser, int iterations) throws Exception {
+        int acc = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            acc += parser.parse(TEXT_MESSAGE);
+        long elapsed = System.nanoTime() - start;
+        sink = acc;
+        return elapsed;
+    }
+
+    private static void report(String name, Parser parser, int iterations) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++)
+            best = Math.min(best, run(parser, iterations));
+        System.out.printf("%-6s %10.1f ns/op%n", name, (double) best / iterations);
+    }
+}
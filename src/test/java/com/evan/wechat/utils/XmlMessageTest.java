@@ -0,0 +1,139 @@
+package com.evan.wechat.utils;
+
+import com.evan.wechat.event.EventType;
+import com.evan.wechat.message.MsgType;
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class XmlMessageTest {
+
+    private static final String TEXT = "<xml>"
+            + "<ToUserName><![CDATA[gh_1234567890ab]]></ToUserName>"
+            + "<FromUserName><![CDATA[oUpF8uMuAJO_M2pxb1Q9zNjWeS6o]]></FromUserName>"
+            + "<CreateTime>1348831860</CreateTime>"
+            + "<MsgType><![CDATA[text]]></MsgType>"
+            + "<Content><![CDATA[你好 <b>world</b>]]></Content>"
+            + "<MsgId>1234567890123456</MsgId>"
+            + "</xml>";
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 扫描结果与dom4j解析的结果一致
+    private static void assertSameAsDom4j(String xml) throws Exception {
+        Map<String, String> expected = new HashMap<String, String>();
+        Document document = new SAXReader().read(new ByteArrayInputStream(utf8(xml)));
+        for (Object node : document.getRootElement().elements()) {
+            Element element = (Element) node;
+            expected.put(element.getName(), element.getText());
+        }
+        assertEquals(expected, XmlMessage.scan(utf8(xml)).toMap());
+    }
+
+    @Test
+    public void scansTextMessage() {
+        XmlMessage message = XmlMessage.scan(utf8(TEXT));
+        assertEquals(6, message.size());
+        assertEquals("ToUserName", message.getName(0));
+        assertEquals("gh_1234567890ab", message.get("ToUserName"));
+        assertEquals("你好 <b>world</b>", message.get("Content"));
+        assertEquals(1348831860L, message.getLong("CreateTime", 0));
+        assertEquals(1234567890123456L, message.getLong("MsgId", 0));
+        assertEquals(-1L, message.getLong("Missing", -1));
+        assertNull(message.get("Missing"));
+        assertTrue(message.contains("MsgId"));
+        assertFalse(message.contains("Event"));
+        assertTrue(message.valueEquals("MsgType", "text"));
+        assertFalse(message.valueEquals("MsgType", "image"));
+        assertTrue(message.valueEquals("Content", "你好 <b>world</b>"));
+        assertSame(MsgType.TEXT, message.getMsgType());
+        assertSame(EventType.UNKNOWN, message.getEventType());
+    }
+
+    @Test
+    public void matchesDom4j() throws Exception {
+        assertSameAsDom4j(TEXT);
+        // XML声明、注释与空白
+        assertSameAsDom4j("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- callback -->\n<xml>\n"
+                + "  <MsgType><![CDATA[event]]></MsgType>\n  <!-- c -->\n  <Event><![CDATA[subscribe]]></Event>\n</xml>");
+        // 实体引用
+        assertSameAsDom4j("<xml><Content>a &lt;b&gt; &amp; &quot;c&quot; &#20320;&#x597D;</Content></xml>");
+        // 多个CDATA段及CDATA外的文本
+        assertSameAsDom4j("<xml><Content><![CDATA[a]]]]><![CDATA[>b]]></Content><Title> <![CDATA[x]]> </Title></xml>");
+        // 空节点与自闭合节点
+        assertSameAsDom4j("<xml><EventKey></EventKey><Ticket/><MsgType>event</MsgType></xml>");
+        // 嵌套节点取全部文本
+        assertSameAsDom4j("<xml><ScanCodeInfo><ScanType><![CDATA[qrcode]]></ScanType><ScanResult><![CDATA[1]]></ScanResult></ScanCodeInfo></xml>");
+    }
+
+    @Test
+    public void resolvesEventType() {
+        XmlMessage message = XmlMessage.scan(utf8("<xml><MsgType><![CDATA[event]]></MsgType><Event><![CDATA[scan]]></Event></xml>"));
+        assertSame(MsgType.EVENT, message.getMsgType());
+        assertSame(EventType.SCAN, message.getEventType());
+        message = XmlMessage.scan(utf8("<xml><MsgType>&#101;vent</MsgType><Event>CLICK</Event></xml>"));
+        assertSame(MsgType.EVENT, message.getMsgType());
+        assertSame(EventType.CLICK, message.getEventType());
+    }
+
+    @Test
+    public void scansRangeAndBuffer() {
+        byte[] body = utf8(TEXT);
+        byte[] padded = new byte[body.length + 20];
+        Arrays.fill(padded, (byte) 'x');
+        System.arraycopy(body, 0, padded, 10, body.length);
+        assertEquals("text", XmlMessage.scan(padded, 10, body.length).get("MsgType"));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(body.length);
+        direct.put(body).flip();
+        assertEquals("text", XmlMessage.scan(direct).get("MsgType"));
+    }
+
+    @Test
+    public void resetAndDetach() {
+        byte[] body = utf8(TEXT);
+        XmlMessage message = XmlMessage.scan(body);
+        message.reset(utf8("<xml><MsgType>image</MsgType></xml>"), 0, 35);
+        assertEquals(1, message.size());
+        assertSame(MsgType.IMAGE, message.getMsgType());
+        assertNull(message.get("Content"));
+
+        message.reset(body, 0, body.length).detach();
+        Arrays.fill(body, (byte) 0);
+        assertEquals("oUpF8uMuAJO_M2pxb1Q9zNjWeS6o", message.get("FromUserName"));
+        assertEquals("你好 <b>world</b>", message.get("Content"));
+    }
+
+    @Test
+    public void rejectsMalformed() {
+        String[] malformed = {
+                "", "no root", "<xml>", "<xml><MsgType>text</MsgType>",
+                "<xml><MsgType>text", "<xml><Content><![CDATA[abc</Content></xml>", "<xml><></xml>"
+        };
+        for (String xml : malformed) {
+            try {
+                XmlMessage.scan(utf8(xml));
+                fail("expected IllegalArgumentException: " + xml);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}